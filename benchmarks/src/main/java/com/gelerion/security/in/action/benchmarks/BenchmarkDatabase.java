@@ -0,0 +1,39 @@
+package com.gelerion.security.in.action.benchmarks;
+
+import org.dalesbred.Database;
+import org.h2.jdbcx.JdbcConnectionPool;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Creates a fresh in-memory Natter database with the chapter 6 schema, so that every benchmark trial starts from
+ * empty tables.
+ */
+final class BenchmarkDatabase {
+    private static final AtomicInteger counter = new AtomicInteger();
+
+    static final String USERNAME = "bench";
+
+    private BenchmarkDatabase() {
+    }
+
+    static Database create() {
+        var url = "jdbc:h2:mem:natter_bench_" + counter.incrementAndGet() + ";DB_CLOSE_DELAY=-1";
+        var database = Database.forDataSource(JdbcConnectionPool.create(url, "natter", "password"));
+
+        try (var schema = requireNonNull(BenchmarkDatabase.class.getResourceAsStream("/schema.sql"))) {
+            database.update(new String(schema.readAllBytes(), UTF_8));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        //tokens reference users(user_id)
+        database.update("INSERT INTO users(user_id, pw_hash) VALUES(?, ?)", USERNAME, "unused");
+        return database;
+    }
+}
@@ -0,0 +1,50 @@
+package com.gelerion.security.in.action.benchmarks;
+
+import com.gelerion.security.in.action.token.DatabaseTokenStore;
+import com.gelerion.security.in.action.token.TokenAttributes;
+import com.gelerion.security.in.action.token.TokenStore;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Login throughput of {@link DatabaseTokenStore#create}: one INSERT per token versus write-behind batching.
+ * <pre>
+ * java -jar benchmarks/target/benchmarks.jar DatabaseTokenStoreBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class DatabaseTokenStoreBenchmark {
+
+    @Param({"0", "64", "256"})
+    public int batchSize;
+
+    private DatabaseTokenStore tokenStore;
+    private TokenStore.Token token;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        tokenStore = new DatabaseTokenStore(BenchmarkDatabase.create(), batchSize, Duration.ofMillis(50));
+        token = new TokenStore.Token(Instant.now().plus(10, ChronoUnit.MINUTES), BenchmarkDatabase.USERNAME,
+                TokenAttributes.of("scope", "create_space post_message read_message list_messages"));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        tokenStore.flush();
+    }
+
+    @Benchmark
+    public String create() {
+        return tokenStore.create(null, token);
+    }
+}
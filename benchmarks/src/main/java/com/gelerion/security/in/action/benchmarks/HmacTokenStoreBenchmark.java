@@ -0,0 +1,74 @@
+package com.gelerion.security.in.action.benchmarks;
+
+import com.gelerion.security.in.action.token.HmacTokenStore;
+import com.gelerion.security.in.action.token.TokenStore;
+import org.openjdk.jmh.annotations.*;
+import spark.Request;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.security.SecureRandom;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost and allocations of the {@link HmacTokenStore} verify path. The delegate is a stub, so only the tag check is
+ * measured. Run with the GC profiler to see the bytes allocated per verify ({@code gc.alloc.rate.norm}):
+ * <pre>
+ * java -jar benchmarks/target/benchmarks.jar HmacTokenStoreBenchmark -prof gc
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HmacTokenStoreBenchmark {
+
+    private HmacTokenStore tokenStore;
+    private String validToken;
+    private String forgedToken;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        var key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        tokenStore = new HmacTokenStore(new StubTokenStore(), new SecretKeySpec(key, "HmacSHA256"));
+
+        validToken = tokenStore.create(null, null);
+        //same token ID, last character of the tag changed
+        var last = validToken.charAt(validToken.length() - 1);
+        forgedToken = validToken.substring(0, validToken.length() - 1) + (last == 'A' ? 'B' : 'A');
+    }
+
+    @Benchmark
+    public Optional<TokenStore.Token> verifyValid() {
+        return tokenStore.read(null, validToken);
+    }
+
+    @Benchmark
+    public Optional<TokenStore.Token> verifyForged() {
+        return tokenStore.read(null, forgedToken);
+    }
+
+    private static class StubTokenStore implements TokenStore {
+        private final Optional<Token> token =
+                Optional.of(new Token(Instant.now().plus(10, ChronoUnit.MINUTES), BenchmarkDatabase.USERNAME));
+
+        @Override
+        public String create(Request request, Token token) {
+            return "kF3mQ2z9Xb7LwR1tYp0sVd4GhJ8";
+        }
+
+        @Override
+        public Optional<Token> read(Request request, String tokenId) {
+            return token;
+        }
+
+        @Override
+        public void revoke(Request request, String tokenId) {
+        }
+    }
+}
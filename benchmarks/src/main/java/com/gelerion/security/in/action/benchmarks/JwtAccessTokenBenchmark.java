@@ -0,0 +1,95 @@
+package com.gelerion.security.in.action.benchmarks;
+
+import com.gelerion.security.in.action.token.JwkSetCache;
+import com.gelerion.security.in.action.token.SignedJwtAccessTokenStore;
+import com.gelerion.security.in.action.token.TokenStore;
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.crypto.ECDSASigner;
+import com.nimbusds.jose.jwk.Curve;
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.gen.ECKeyGenerator;
+import com.nimbusds.jose.jwk.source.ImmutableJWKSet;
+import com.nimbusds.jose.proc.BadJOSEException;
+import com.nimbusds.jose.proc.JWSVerificationKeySelector;
+import com.nimbusds.jose.proc.SecurityContext;
+import com.nimbusds.jose.util.Resource;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.SignedJWT;
+import com.nimbusds.jwt.proc.DefaultJWTProcessor;
+import org.openjdk.jmh.annotations.*;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.text.ParseException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Date;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of validating an ES256 JWT access token with the {@link SignedJwtAccessTokenStore}, against building a new
+ * processor and key selector for every token like the store used to.
+ * <pre>
+ * java -jar benchmarks/target/benchmarks.jar JwtAccessTokenBenchmark -prof gc
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JwtAccessTokenBenchmark {
+    private static final String ISSUER = "https://as.example.com";
+    private static final String AUDIENCE = "https://localhost:4567";
+
+    private JwkSetCache jwkSet;
+    private TokenStore tokenStore;
+    private ImmutableJWKSet<SecurityContext> jwkSource;
+    private String accessToken;
+
+    @Setup(Level.Trial)
+    public void setUp() throws JOSEException, MalformedURLException {
+        var signingKey = new ECKeyGenerator(Curve.P_256).keyID("key-1").generate();
+        var jwks = new JWKSet(signingKey.toPublicJWK());
+
+        //the AS is played by a retriever that always returns the same key set
+        jwkSet = new JwkSetCache(new URL("https://as.example.com/jwks"),
+                url -> new Resource(jwks.toString(), "application/json"),
+                JWSAlgorithm.ES256, null, Duration.ofMinutes(5), Duration.ofSeconds(30));
+        tokenStore = new SignedJwtAccessTokenStore(ISSUER, AUDIENCE, jwkSet);
+        jwkSource = new ImmutableJWKSet<>(jwks);
+
+        var claims = new JWTClaimsSet.Builder()
+                .issuer(ISSUER)
+                .audience(AUDIENCE)
+                .subject(BenchmarkDatabase.USERNAME)
+                .expirationTime(Date.from(Instant.now().plus(10, ChronoUnit.MINUTES)))
+                .claim("scope", "create_space post_message read_message list_messages")
+                .build();
+        var jwt = new SignedJWT(new JWSHeader.Builder(JWSAlgorithm.ES256).keyID("key-1").build(), claims);
+        jwt.sign(new ECDSASigner(signingKey));
+        accessToken = jwt.serialize();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        jwkSet.close();
+    }
+
+    @Benchmark
+    public Optional<TokenStore.Token> read() {
+        return tokenStore.read(null, accessToken);
+    }
+
+    @Benchmark
+    public JWTClaimsSet perRequestProcessor() throws ParseException, BadJOSEException, JOSEException {
+        var verifier = new DefaultJWTProcessor<>();
+        verifier.setJWSKeySelector(new JWSVerificationKeySelector<>(JWSAlgorithm.ES256, jwkSource));
+        return verifier.process(accessToken, null);
+    }
+}
@@ -0,0 +1,72 @@
+package com.gelerion.security.in.action.benchmarks;
+
+import com.gelerion.security.in.action.token.CachingTokenStore;
+import com.gelerion.security.in.action.token.SignedJwtTokenStore;
+import com.gelerion.security.in.action.token.TokenAttributes;
+import com.gelerion.security.in.action.token.TokenStore;
+import com.gelerion.security.in.action.token.encrypted.EncryptedJwtTokenStore;
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.crypto.MACSigner;
+import com.nimbusds.jose.crypto.MACVerifier;
+import org.openjdk.jmh.annotations.*;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.security.SecureRandom;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of validating the same self-contained token over and over, with and without the {@link CachingTokenStore}.
+ * <pre>
+ * java -jar benchmarks/target/benchmarks.jar JwtTokenStoreBenchmark -prof gc
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JwtTokenStoreBenchmark {
+
+    @Param({"signed", "encrypted"})
+    public String store;
+
+    @Param({"false", "true"})
+    public boolean cached;
+
+    private TokenStore tokenStore;
+    private String tokenId;
+
+    @Setup(Level.Trial)
+    public void setUp() throws JOSEException {
+        var random = new SecureRandom();
+        var macKey = new byte[32];
+        var encKey = new byte[32];
+        random.nextBytes(macKey);
+        random.nextBytes(encKey);
+
+        if ("signed".equals(store)) {
+            var key = new SecretKeySpec(macKey, "HmacSHA256");
+            tokenStore = new SignedJwtTokenStore(new MACSigner(key), new MACVerifier(key),
+                    JWSAlgorithm.HS256, "https://localhost:4567");
+        } else {
+            tokenStore = new EncryptedJwtTokenStore(new SecretKeySpec(encKey, "AES"));
+        }
+        if (cached) {
+            tokenStore = new CachingTokenStore(tokenStore, 10_000);
+        }
+
+        var token = new TokenStore.Token(Instant.now().plus(10, ChronoUnit.MINUTES), BenchmarkDatabase.USERNAME,
+                TokenAttributes.of("scope", "create_space post_message read_message list_messages"));
+        tokenId = tokenStore.create(null, token);
+    }
+
+    @Benchmark
+    public Optional<TokenStore.Token> read() {
+        return tokenStore.read(null, tokenId);
+    }
+}
@@ -0,0 +1,89 @@
+package com.gelerion.security.in.action.benchmarks;
+
+import com.gelerion.security.in.action.controller.SpaceController;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.*;
+import spark.Request;
+import spark.Response;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Messages posted per second by {@link SpaceController#postMessage}, one message per request, and by
+ * {@link SpaceController#postMessages}, {@value #BATCH_SIZE} per request. Only the controller and the database are
+ * measured. Each request also costs its own HTTP exchange, authentication, permission check and audit records,
+ * which the batch pays once for all of its messages.
+ * <pre>
+ * java -jar benchmarks/target/benchmarks.jar MessagePostingBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessagePostingBenchmark {
+    private static final int BATCH_SIZE = 100;
+
+    private SpaceController spaceController;
+    private Request single;
+    private Request batch;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        var database = BenchmarkDatabase.create();
+        database.update("INSERT INTO spaces(space_id, name, owner) VALUES(1, 'bench', ?)", BenchmarkDatabase.USERNAME);
+        spaceController = new SpaceController(database);
+
+        var message = new JSONObject()
+                .put("author", BenchmarkDatabase.USERNAME)
+                .put("message", "Nobody expects the Spanish Inquisition");
+        var messages = new JSONArray();
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            messages.put(message);
+        }
+        single = new StubRequest(message.toString());
+        batch = new StubRequest(messages.toString());
+    }
+
+    @Benchmark
+    public JSONObject postMessage() {
+        return spaceController.postMessage(single, new StubResponse());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public JSONObject postMessages() {
+        return spaceController.postMessages(batch, new StubResponse());
+    }
+
+    private static class StubRequest extends Request {
+        private final String body;
+
+        StubRequest(String body) {
+            this.body = body;
+        }
+
+        @Override
+        public String params(String param) {
+            return "1";
+        }
+
+        @Override
+        public String body() {
+            return body;
+        }
+    }
+
+    private static class StubResponse extends Response {
+        @Override
+        public void status(int statusCode) {
+        }
+
+        @Override
+        public void header(String header, String value) {
+        }
+    }
+}
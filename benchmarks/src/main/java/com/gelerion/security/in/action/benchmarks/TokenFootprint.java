@@ -0,0 +1,67 @@
+package com.gelerion.security.in.action.benchmarks;
+
+import com.gelerion.security.in.action.token.TokenAttributes;
+import com.gelerion.security.in.action.token.TokenStore;
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Reference;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntFunction;
+
+/**
+ * Heap retained per cached token, with the attributes in a {@link TokenAttributes} and in a
+ * {@link ConcurrentHashMap} like tokens used to have. Every token gets freshly decoded strings, the way a token store
+ * produces them, and the tokens are then kept alive the way a cache would.
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar com.gelerion.security.in.action.benchmarks.TokenFootprint
+ * </pre>
+ */
+public class TokenFootprint {
+    private static final String SCOPE = "create_space post_message read_message list_messages";
+    private static final String CLIENT_ID = "natter-spa";
+
+    public static void main(String[] args) {
+        var count = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        var expiry = Instant.now();
+
+        //the username is the same in both, what differs is how the attributes are held
+        var hashMap = measure(count, i -> new Object[]{expiry, decoded("user-" + i),
+                new ConcurrentHashMap<>(Map.of(decoded("scope"), decoded(SCOPE),
+                        decoded("client_id"), decoded(CLIENT_ID)))});
+        var compact = measure(count, i -> new TokenStore.Token(expiry, decoded("user-" + i),
+                TokenAttributes.builder(2)
+                        .put(decoded("scope"), decoded(SCOPE))
+                        .put(decoded("client_id"), decoded(CLIENT_ID))
+                        .build()));
+
+        System.out.printf("ConcurrentHashMap attributes: %d bytes per token%n", hashMap);
+        System.out.printf("TokenAttributes:              %d bytes per token%n", compact);
+    }
+
+    private static long measure(int count, IntFunction<Object> token) {
+        //the array is allocated before measuring, it isn't part of a token
+        var tokens = new Object[count];
+        var before = usedHeap();
+        for (int i = 0; i < count; i++) {
+            tokens[i] = token.apply(i);
+        }
+        var after = usedHeap();
+        Reference.reachabilityFence(tokens);
+        return (after - before) / count;
+    }
+
+    //a new copy, like the strings parsed out of a token
+    private static String decoded(String value) {
+        return new String(value.toCharArray());
+    }
+
+    private static long usedHeap() {
+        var memory = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+}
@@ -0,0 +1,89 @@
+package com.gelerion.security.in.action.benchmarks;
+
+import com.gelerion.security.in.action.token.BinaryTokenStore;
+import com.gelerion.security.in.action.token.JsonTokenStore;
+import com.gelerion.security.in.action.token.SignedJwtTokenStore;
+import com.gelerion.security.in.action.token.TokenAttributes;
+import com.gelerion.security.in.action.token.TokenStore;
+import com.gelerion.security.in.action.token.encrypted.EncryptedJwtTokenStore;
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.crypto.MACSigner;
+import com.nimbusds.jose.crypto.MACVerifier;
+import org.openjdk.jmh.annotations.*;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.security.SecureRandom;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of encoding and decoding a self-contained token in each format. The size of the token is printed when each
+ * trial starts.
+ * <pre>
+ * java -jar benchmarks/target/benchmarks.jar TokenFormatBenchmark -prof gc
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TokenFormatBenchmark {
+
+    @Param({"json", "signed-jwt", "encrypted-jwt", "binary-mac", "binary-aead"})
+    public String format;
+
+    private TokenStore tokenStore;
+    private TokenStore.Token token;
+    private String tokenId;
+
+    @Setup(Level.Trial)
+    public void setUp() throws JOSEException {
+        var random = new SecureRandom();
+        var key = new byte[32];
+        random.nextBytes(key);
+        var macKey = new SecretKeySpec(key, "HmacSHA256");
+        var encKey = new SecretKeySpec(key, "AES");
+        var audience = "https://localhost:4567";
+
+        switch (format) {
+            case "json":
+                tokenStore = new JsonTokenStore();
+                break;
+            case "signed-jwt":
+                tokenStore = new SignedJwtTokenStore(new MACSigner(macKey), new MACVerifier(macKey),
+                        JWSAlgorithm.HS256, audience);
+                break;
+            case "encrypted-jwt":
+                tokenStore = new EncryptedJwtTokenStore(encKey);
+                break;
+            case "binary-mac":
+                tokenStore = new BinaryTokenStore(macKey, BinaryTokenStore.Protection.MAC, audience);
+                break;
+            case "binary-aead":
+                tokenStore = new BinaryTokenStore(encKey, BinaryTokenStore.Protection.AEAD, audience);
+                break;
+            default:
+                throw new IllegalArgumentException(format);
+        }
+
+        token = new TokenStore.Token(Instant.now().plus(10, ChronoUnit.MINUTES), BenchmarkDatabase.USERNAME,
+                TokenAttributes.of("scope", "create_space post_message read_message list_messages"));
+        tokenId = tokenStore.create(null, token);
+        System.out.println("token size: " + tokenId.length() + " chars");
+    }
+
+    @Benchmark
+    public String create() {
+        return tokenStore.create(null, token);
+    }
+
+    @Benchmark
+    public Optional<TokenStore.Token> read() {
+        return tokenStore.read(null, tokenId);
+    }
+}
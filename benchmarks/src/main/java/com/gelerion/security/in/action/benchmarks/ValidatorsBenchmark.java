@@ -0,0 +1,61 @@
+package com.gelerion.security.in.action.benchmarks;
+
+import com.gelerion.security.in.action.validation.Validators;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Cost of the input checks every request goes through, with {@code String.matches} like they used to be, with a
+ * precompiled {@link Pattern}, and with {@link Validators}. The access token is a typical opaque token of 43
+ * characters. Run with the GC profiler to see the bytes allocated per check:
+ * <pre>
+ * java -jar benchmarks/target/benchmarks.jar ValidatorsBenchmark -prof gc
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ValidatorsBenchmark {
+    private static final String USERNAME_REGEX = "[a-zA-Z][a-zA-Z0-9]{1,29}";
+    private static final String ACCESS_TOKEN_REGEX = "[\\x20-\\x7E]{1,1024}";
+    private static final Pattern USERNAME_PATTERN = Pattern.compile(USERNAME_REGEX);
+    private static final Pattern ACCESS_TOKEN_PATTERN = Pattern.compile(ACCESS_TOKEN_REGEX);
+
+    public String username = BenchmarkDatabase.USERNAME;
+    public String accessToken = "Pa3LUbx5YFq0xDGfQYXvAtY2zjsTKYL3uBVlF_ZGbyA";
+
+    @Benchmark
+    public boolean usernameStringMatches() {
+        return username.matches(USERNAME_REGEX);
+    }
+
+    @Benchmark
+    public boolean usernamePattern() {
+        return USERNAME_PATTERN.matcher(username).matches();
+    }
+
+    @Benchmark
+    public boolean usernameValidators() {
+        return Validators.isUsername(username);
+    }
+
+    @Benchmark
+    public boolean accessTokenStringMatches() {
+        return accessToken.matches(ACCESS_TOKEN_REGEX);
+    }
+
+    @Benchmark
+    public boolean accessTokenPattern() {
+        return ACCESS_TOKEN_PATTERN.matcher(accessToken).matches();
+    }
+
+    @Benchmark
+    public boolean accessTokenValidators() {
+        return Validators.isAccessToken(accessToken);
+    }
+}
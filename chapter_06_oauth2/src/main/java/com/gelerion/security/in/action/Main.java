@@ -1,12 +1,21 @@
 package com.gelerion.security.in.action;
 
 import com.gelerion.security.in.action.controller.AuditController;
+import com.gelerion.security.in.action.controller.CredentialCache;
+import com.gelerion.security.in.action.controller.MessageCache;
+import com.gelerion.security.in.action.controller.PasswordHashingExecutor;
+import com.gelerion.security.in.action.controller.PermissionCache;
+import com.gelerion.security.in.action.controller.ScryptParameters;
+import com.gelerion.security.in.action.controller.SequenceAllocator;
 import com.gelerion.security.in.action.controller.SpaceController;
 import com.gelerion.security.in.action.controller.TokenController;
 import com.gelerion.security.in.action.controller.UserController;
 import com.gelerion.security.in.action.filter.CorsFilter;
+import com.gelerion.security.in.action.token.CachingTokenStore;
+import com.gelerion.security.in.action.token.TokenStoreScheduler;
 import com.gelerion.security.in.action.token.encrypted.EncryptedJwtTokenStore;
 import com.google.common.util.concurrent.RateLimiter;
+import com.lambdaworks.crypto.SCryptUtil;
 import com.nimbusds.jose.JWSAlgorithm;
 import com.nimbusds.jose.crypto.MACSigner;
 import com.nimbusds.jose.crypto.MACVerifier;
@@ -24,7 +33,9 @@ import java.io.FileInputStream;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.security.KeyStore;
+import java.time.Duration;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import static java.util.Objects.requireNonNull;
 import static spark.Service.SPARK_DEFAULT_PORT;
@@ -53,9 +64,37 @@ public class Main {
         datasource = JdbcConnectionPool.create("jdbc:h2:mem:natter", "natter_api_user", "password");
         database = Database.forDataSource(datasource);
 
-        var spaceController = new SpaceController(database);
-        var userController = new UserController(database);
-        var auditController = new AuditController(database);
+        //[access control lists] permissions are cached per space and user, including for non-members
+        var permissionCache = new PermissionCache(database, Duration.ofMinutes(5), 100_000);
+        //[etag] up to 16M characters of message JSON
+        var messageCache = new MessageCache(16 << 20);
+        //[hi/lo] ids come from blocks reserved in the sequences, not from a query per insert
+        var spaceController = new SpaceController(database, permissionCache,
+                new SequenceAllocator(database, "space_id_seq"), new SequenceAllocator(database, "msg_id_seq"),
+                messageCache);
+        //[basic auth] scrypt runs on a pool with one thread per core, when its queue is full logins get a 503.
+        // A client sending the same credentials again within a minute skips scrypt altogether
+        var passwordHashing = new PasswordHashingExecutor();
+        var credentialCache = new CredentialCache(SCryptUtil::check, passwordHashing, Duration.ofMinutes(1), 10_000);
+        //[scrypt] set with scrypt.N, scrypt.r and scrypt.p, or else tuned once to take about 100ms and at most 32MiB
+        // per hash on this machine and kept in ~/.natter for later restarts. Weaker hashes are upgraded on login
+        var scrypt = Integer.getInteger("scrypt.N") != null
+                ? new ScryptParameters(Integer.getInteger("scrypt.N"),
+                        Integer.getInteger("scrypt.r", 8), Integer.getInteger("scrypt.p", 1))
+                : ScryptParameters.loadOrCalibrate(
+                        Paths.get(System.getProperty("scrypt.parameters.file",
+                                System.getProperty("user.home") + "/.natter/scrypt.properties")),
+                        Duration.ofMillis(Long.getLong("scrypt.target.ms", 100)),
+                        Long.getLong("scrypt.max.memory", 32L << 20));
+        var userController = new UserController(database, passwordHashing, scrypt, credentialCache,
+                permissionCache);
+        TokenStoreScheduler.shared().scheduleAtFixedRate(() -> {
+            credentialCache.report();
+            passwordHashing.report();
+            permissionCache.report();
+            messageCache.report();
+        }, 5, 5, TimeUnit.MINUTES);
+        var auditController = new AuditController(database, new SequenceAllocator(database, "audit_id_seq"));
 
         //[hmac]
         var keyPassword = System.getProperty("keystore.password", "changeit").toCharArray();
@@ -70,9 +109,25 @@ public class Main {
         var signer = new MACSigner((SecretKey) macKey);
         var verifier = new MACVerifier((SecretKey) macKey);
         //var tokenStore = new SignedJwtTokenStore(signer, verifier, algorithm, "https://localhost:4567");
-        var tokenStore = new EncryptedJwtTokenStore((SecretKey) encKey);
+        //[token cache] clients reuse a token for minutes, skip decrypting it again on every request
+        var tokenStore = new CachingTokenStore(new EncryptedJwtTokenStore((SecretKey) encKey), 10_000);
         var tokenController = new TokenController(tokenStore);
 
+        //[preventing XSS] it is important to set correct type headers on all responses to ensure that data
+        // is processed as intended by the client. They are set before anything else runs, so that they are also on
+        // responses that a route streams out itself (see SpaceController.findMessages)
+        before((request, response) -> {
+            response.type("application/json;charset=utf-8");
+
+            //[preventing XSS] add standard security headers
+            response.header("X-Content-Type-Options", "nosniff");
+            response.header("X-Frame-Options", "DENY");
+            response.header("X-XSS-Protection", "0");
+            response.header("Cache-Control", "no-store");
+            //[xss] https://developer.mozilla.org/en-US/docs/Web/HTTP/CSP
+            response.header("Content-Security-Policy", "default-src 'none'; frame-ancestors 'none'; sandbox");
+        });
+
         //[rate-limiting] allow just 2 API requests per second
         var rateLimiter = RateLimiter.create(2.0d);
         before((request, response) -> {
@@ -92,20 +147,6 @@ public class Main {
             }
         }));
 
-        //[preventing XSS] it is important to set correct type headers on all responses to ensure that data
-        // is processed as intended by the client
-        afterAfter((request, response) -> {
-            response.type("application/json;charset=utf-8");
-
-            //[preventing XSS] add standard security headers
-            response.header("X-Content-Type-Options", "nosniff");
-            response.header("X-Frame-Options", "DENY");
-            response.header("X-XSS-Protection", "0");
-            response.header("Cache-Control", "no-store");
-            //[xss] https://developer.mozilla.org/en-US/docs/Web/HTTP/CSP
-            response.header("Content-Security-Policy", "default-src 'none'; frame-ancestors 'none'; sandbox");
-        });
-
         //If either filter succeeds, then the subject attribute will be populated in the request
         //and subsequent access control checks will pass
 
@@ -139,12 +180,26 @@ public class Main {
         before("/spaces/*/messages", tokenController.requireScope("POST", "post_message"));
         before("/spaces/:spaceId/messages", userController.requirePermission("POST", "w"));
         post("/spaces/:spaceId/messages", spaceController::postMessage);
+        before("/spaces/*/messages:batch", tokenController.requireScope("POST", "post_message"));
+        before("/spaces/:spaceId/messages:batch", userController.requirePermission("POST", "w"));
+        post("/spaces/:spaceId/messages:batch", spaceController::postMessages);
 
         before("/spaces/*/messages/*", tokenController.requireScope("GET", "read_message"));
         before("/spaces/:spaceId/messages/*", userController.requirePermission("GET", "r"));
         get("/spaces/:spaceId/messages/:msgId", spaceController::readMessage);
 
+        before("/spaces/*/messages/*", tokenController.requireScope("DELETE", "delete_message"));
+        before("/spaces/:spaceId/messages/*", userController.requirePermission("DELETE", "d"));
+        delete("/spaces/:spaceId/messages/:msgId", spaceController::deleteMessage);
+
         before("/spaces/*/messages", tokenController.requireScope("GET", "list_messages"));
+        //listing with the messages themselves reads them too
+        var requireReadMessage = tokenController.requireScope("GET", "read_message");
+        before("/spaces/*/messages", (request, response) -> {
+            if (request.queryParams("ids") != null || "messages".equals(request.queryParams("expand"))) {
+                requireReadMessage.handle(request, response);
+            }
+        });
         before("/spaces/:spaceId/messages", userController.requirePermission("GET", "r"));
         get("/spaces/:spaceId/messages", spaceController::findMessages);
 
@@ -172,6 +227,11 @@ public class Main {
         exception(IllegalArgumentException.class, Main::badRequest);
         exception(JSONException.class, Main::badRequest);
         exception(EmptyResultException.class, (e, request, response) -> response.status(404));
+        exception(PasswordHashingExecutor.BusyException.class, (e, request, response) -> {
+            response.status(503);
+            response.header("Retry-After", String.valueOf(e.retryAfterSeconds()));
+            response.body(new JSONObject().put("error", e.getMessage()).toString());
+        });
     }
 
     private static void badRequest(Exception ex, Request request, Response response) {
@@ -14,23 +14,27 @@ import java.time.temporal.ChronoUnit;
 public class AuditController {
 
     private final Database database;
+    private final SequenceAllocator auditIds;
 
     public AuditController(Database database) {
+        this(database, new SequenceAllocator(database, "audit_id_seq"));
+    }
+
+    public AuditController(Database database, SequenceAllocator auditIds) {
         this.database = database;
+        this.auditIds = auditIds;
     }
 
     public void auditRequestStart(Request request, Response response) {
-        database.withVoidTransaction(tx -> {
-            var auditId = database.findUniqueLong("SELECT NEXT VALUE FOR audit_id_seq");
-            request.attribute("audit_id", auditId);
-            database.updateUnique(
-                    "INSERT INTO audit_log(audit_id, method, path, user_id, audit_time) " +
-                            "VALUES(?, ?, ?, ?, current_timestamp)",
-                    auditId,
-                    request.requestMethod(),
-                    request.pathInfo(),
-                    request.attribute("subject"));
-        });
+        var auditId = auditIds.next();
+        request.attribute("audit_id", auditId);
+        database.updateUnique(
+                "INSERT INTO audit_log(audit_id, method, path, user_id, audit_time) " +
+                        "VALUES(?, ?, ?, ?, current_timestamp)",
+                auditId,
+                request.requestMethod(),
+                request.pathInfo(),
+                request.attribute("subject"));
     }
 
     public void auditRequestEnd(Request request, Response response) {
@@ -0,0 +1,108 @@
+package com.gelerion.security.in.action.controller;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiPredicate;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Remembers, for a short time, which username and password combinations were recently verified against scrypt, so
+ * that clients sending the same Basic credentials on every request don't cost 100ms of CPU each time.
+ * <p>
+ * Neither the password nor its hash are kept. An entry is an HMAC of the username, the password and the stored
+ * {@code pw_hash}, under a random key that only lives as long as the process. Whoever can read the cache learns
+ * nothing they could use to log in or to guess passwords offline. Because the stored hash is part of the HMAC, an
+ * entry stops matching as soon as the user's {@code pw_hash} changes. Only successful verifications are cached, and
+ * the cache is bounded both in size and in how long an entry lives.
+ */
+public class CredentialCache {
+    private static final Logger logger = LoggerFactory.getLogger(CredentialCache.class);
+
+    private final BiPredicate<String, String> check;
+    private final PasswordHashingExecutor passwordHashing;
+    private final HashFunction hmac;
+    private final Cache<HashCode, Boolean> verified;
+    private final LongAdder verifications = new LongAdder();
+    private final LongAdder verificationNanos = new LongAdder();
+
+    /**
+     * @param check           verifies a password against a stored hash, such as {@code SCryptUtil::check}.
+     * @param passwordHashing the pool that runs {@code check} on a miss.
+     */
+    public CredentialCache(BiPredicate<String, String> check, PasswordHashingExecutor passwordHashing,
+                           Duration ttl, int maximumSize) {
+        this.check = check;
+        this.passwordHashing = passwordHashing;
+        var key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        this.hmac = Hashing.hmacSha256(key);
+        this.verified = CacheBuilder.newBuilder()
+                .expireAfterWrite(ttl)
+                .maximumSize(maximumSize)
+                .recordStats()
+                .build();
+    }
+
+    public boolean verify(String username, String password, String pwHash) {
+        var key = hmac.newHasher()
+                .putInt(username.length()).putString(username, UTF_8)
+                .putInt(password.length()).putString(password, UTF_8)
+                .putInt(pwHash.length()).putString(pwHash, UTF_8)
+                .hash();
+        if (verified.getIfPresent(key) != null) {
+            return true;
+        }
+
+        //timed on the pool thread, that is where the CPU time goes
+        var valid = passwordHashing.execute(() -> {
+            var start = cpuTime();
+            try {
+                return check.test(password, pwHash);
+            } finally {
+                verificationNanos.add(cpuTime() - start);
+                verifications.increment();
+            }
+        });
+
+        if (valid) {
+            verified.put(key, Boolean.TRUE);
+        }
+        return valid;
+    }
+
+    public double hitRate() {
+        return verified.stats().hitRate();
+    }
+
+    /**
+     * The CPU time hits didn't spend on hashing, estimated from the average cost of the verifications that did run.
+     */
+    public Duration cpuTimeSaved() {
+        var count = verifications.sum();
+        if (count == 0) {
+            return Duration.ZERO;
+        }
+        return Duration.ofNanos(verified.stats().hitCount() * (verificationNanos.sum() / count));
+    }
+
+    public void report() {
+        logger.info("Credential cache hit rate {}, saved {} ms of password hashing",
+                String.format("%.2f", hitRate()), cpuTimeSaved().toMillis());
+    }
+
+    private static long cpuTime() {
+        var threads = ManagementFactory.getThreadMXBean();
+        return threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+}
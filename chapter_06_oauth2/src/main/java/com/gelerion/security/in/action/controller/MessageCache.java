@@ -0,0 +1,105 @@
+package com.gelerion.security.in.action.controller;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Keeps messages in memory as the JSON the API responds with, together with their ETag. A message never changes
+ * once it is posted, so an entry stays valid until the message is deleted, and the cache only needs to be bounded.
+ * The bound is on the total length of the JSON, so a few long messages can't take up more memory than many short
+ * ones.
+ * <p>
+ * The ETag is a hash of the JSON. It is a strong validator: two responses with the same ETag are identical.
+ */
+public class MessageCache {
+    private static final Logger logger = LoggerFactory.getLogger(MessageCache.class);
+
+    private final Cache<Long, Entry> messages;
+    private final AtomicLong invalidations = new AtomicLong();
+
+    public MessageCache(long maximumChars) {
+        this.messages = CacheBuilder.newBuilder()
+                .maximumWeight(maximumChars)
+                .<Long, Entry>weigher((msgId, entry) -> entry.json.length())
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * The message from the cache, or as loaded by {@code loader} if it isn't cached yet. Message ids are unique
+     * across spaces, a cached message of another space is loaded again so that the loader can reject it.
+     */
+    public Entry get(long spaceId, long msgId, Supplier<SpaceController.Message> loader) {
+        var entry = messages.getIfPresent(msgId);
+        if (entry != null && entry.spaceId == spaceId) {
+            return entry;
+        }
+        //a message deleted while it was being loaded must not end up in the cache
+        var generation = invalidations.get();
+        entry = new Entry(spaceId, loader.get().toString());
+        if (invalidations.get() == generation) {
+            messages.put(msgId, entry);
+        }
+        return entry;
+    }
+
+    public void invalidate(long msgId) {
+        invalidations.incrementAndGet();
+        messages.invalidate(msgId);
+    }
+
+    public void report() {
+        logger.info("Message cache: {} messages, hit rate {}",
+                messages.size(), String.format("%.2f", messages.stats().hitRate()));
+    }
+
+    public static final class Entry {
+        private final long spaceId;
+        private final String json;
+        private final String etag;
+
+        Entry(long spaceId, String json) {
+            this.spaceId = spaceId;
+            this.json = json;
+            var hash = Hashing.sha256().hashString(json, UTF_8).asBytes();
+            this.etag = '"' + BaseEncoding.base64Url().omitPadding().encode(hash, 0, 16) + '"';
+        }
+
+        public String json() {
+            return json;
+        }
+
+        public String etag() {
+            return etag;
+        }
+
+        /**
+         * Whether the client already has this message, going by its If-None-Match header. If-None-Match compares
+         * ETags weakly, so a W/ prefix is ignored.
+         */
+        public boolean matches(String ifNoneMatch) {
+            if (ifNoneMatch == null) {
+                return false;
+            }
+            for (var candidate : ifNoneMatch.split(",")) {
+                candidate = candidate.trim();
+                if (candidate.startsWith("W/")) {
+                    candidate = candidate.substring(2);
+                }
+                if (candidate.equals("*") || candidate.equals(etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
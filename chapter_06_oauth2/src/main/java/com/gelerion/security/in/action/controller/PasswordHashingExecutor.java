@@ -0,0 +1,166 @@
+package com.gelerion.security.in.action.controller;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Runs password hashing on its own pool instead of on Jetty's request threads. Scrypt is deliberately expensive,
+ * and a burst of logins running on request threads takes every core, leaving none for cheap requests such as
+ * reading a message. The pool has one thread per core and a bounded queue. Requests for a hash wait for their turn,
+ * and once the queue is full they are turned away straight away with a {@link BusyException}, which the API answers
+ * with a 503 and a Retry-After header, rather than piling up more waiting threads.
+ */
+public class PasswordHashingExecutor {
+    private static final Logger logger = LoggerFactory.getLogger(PasswordHashingExecutor.class);
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    private final ThreadPoolExecutor executor;
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final LongAdder workNanos = new LongAdder();
+
+    public PasswordHashingExecutor() {
+        this(Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().availableProcessors() * 4);
+    }
+
+    public PasswordHashingExecutor(int threads, int queueCapacity) {
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+                    var thread = new Thread(runnable, "password-hashing-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * Runs {@code work} on the pool and waits for its result.
+     *
+     * @throws BusyException if the queue is full.
+     */
+    public <T> T execute(Supplier<T> work) {
+        var submitted = System.nanoTime();
+        var future = new FutureTask<T>(() -> {
+            var started = System.nanoTime();
+            recordWait(started - submitted);
+            try {
+                return work.get();
+            } finally {
+                workNanos.add(System.nanoTime() - started);
+                completed.increment();
+            }
+        });
+
+        try {
+            executor.execute(future);
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            throw new BusyException(retryAfterSeconds());
+        }
+
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Queues {@code work} on the pool without waiting for it, for work nobody is waiting on such as upgrading a
+     * password hash.
+     *
+     * @return false if the queue is full and {@code work} was dropped.
+     */
+    public boolean tryExecute(Runnable work) {
+        var submitted = System.nanoTime();
+        try {
+            executor.execute(() -> {
+                var started = System.nanoTime();
+                recordWait(started - submitted);
+                try {
+                    work.run();
+                } finally {
+                    workNanos.add(System.nanoTime() - started);
+                    completed.increment();
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    public int queueDepth() {
+        return executor.getQueue().size();
+    }
+
+    public double averageWaitMillis() {
+        var count = completed.sum();
+        return count == 0 ? 0 : waitNanos.sum() / 1e6 / count;
+    }
+
+    public double maxWaitMillis() {
+        return maxWaitNanos.get() / 1e6;
+    }
+
+    public long rejected() {
+        return rejected.sum();
+    }
+
+    public void report() {
+        logger.info("Password hashing: {} done, {} rejected, {} queued, wait avg {} ms max {} ms",
+                completed.sum(), rejected(), queueDepth(),
+                String.format("%.1f", averageWaitMillis()), String.format("%.1f", maxWaitMillis()));
+    }
+
+    private void recordWait(long nanos) {
+        waitNanos.add(nanos);
+        maxWaitNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    //roughly how long until the queue has drained, going by how long a hash has taken so far
+    private long retryAfterSeconds() {
+        var count = completed.sum();
+        if (count == 0) {
+            return 1;
+        }
+        var averageNanos = workNanos.sum() / count;
+        var pending = executor.getQueue().size() + executor.getActiveCount();
+        var drainNanos = averageNanos * pending / executor.getMaximumPoolSize();
+        return Math.max(1, TimeUnit.NANOSECONDS.toSeconds(drainNanos + TimeUnit.SECONDS.toNanos(1) - 1));
+    }
+
+    public static class BusyException extends RejectedExecutionException {
+        private static final long serialVersionUID = 1L;
+
+        private final long retryAfterSeconds;
+
+        BusyException(long retryAfterSeconds) {
+            super("too many password checks in progress");
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+
+        public long retryAfterSeconds() {
+            return retryAfterSeconds;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.gelerion.security.in.action.controller;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.dalesbred.Database;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the permissions each user has on each space in memory, so that the access control check in front of every
+ * message route doesn't need its own query. The permissions are kept as a bit mask with one bit each for read, write
+ * and delete. Users who aren't members of a space are cached too, with no bits set, so that repeated requests from
+ * outsiders don't reach the database either.
+ * <p>
+ * Whoever changes the permissions table calls {@link #invalidate} once the change is committed. A lookup that was
+ * already querying the database when that happened might have read the old permissions, so a lookup only caches its
+ * result if nothing was invalidated while it ran. Entries also expire after a while, in case the table is changed
+ * by something other than this API.
+ */
+public class PermissionCache {
+    private static final Logger logger = LoggerFactory.getLogger(PermissionCache.class);
+
+    public static final int READ = 1;
+    public static final int WRITE = 1 << 1;
+    public static final int DELETE = 1 << 2;
+
+    private final Database database;
+    private final Cache<Key, Integer> permissions;
+    private final AtomicLong invalidations = new AtomicLong();
+
+    public PermissionCache(Database database, Duration ttl, int maximumSize) {
+        this.database = database;
+        this.permissions = CacheBuilder.newBuilder()
+                .expireAfterWrite(ttl)
+                .maximumSize(maximumSize)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * The permissions {@code userId} has on {@code spaceId} as a mask of {@link #READ}, {@link #WRITE} and
+     * {@link #DELETE}, 0 if they are not a member.
+     */
+    public int permissions(long spaceId, String userId) {
+        var key = new Key(spaceId, userId);
+        var cached = permissions.getIfPresent(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        var generation = invalidations.get();
+        var mask = mask(database.findOptional(String.class,
+                "SELECT perms FROM permissions WHERE space_id = ? AND user_id = ?",
+                spaceId, userId).orElse(""));
+        if (invalidations.get() == generation) {
+            permissions.put(key, mask);
+        }
+        return mask;
+    }
+
+    public void invalidate(long spaceId, String userId) {
+        invalidations.incrementAndGet();
+        permissions.invalidate(new Key(spaceId, userId));
+    }
+
+    /**
+     * Converts permissions as stored in the database, such as {@code "rw"}, to a mask.
+     */
+    public static int mask(String perms) {
+        var mask = 0;
+        for (int i = 0; i < perms.length(); i++) {
+            switch (perms.charAt(i)) {
+                case 'r': mask |= READ; break;
+                case 'w': mask |= WRITE; break;
+                case 'd': mask |= DELETE; break;
+                default: throw new IllegalArgumentException("invalid permissions");
+            }
+        }
+        return mask;
+    }
+
+    public long hits() {
+        return permissions.stats().hitCount();
+    }
+
+    public long misses() {
+        return permissions.stats().missCount();
+    }
+
+    public void report() {
+        logger.info("Permission cache: {} hits, {} misses (database lookups), hit rate {}",
+                hits(), misses(), String.format("%.2f", permissions.stats().hitRate()));
+    }
+
+    private static final class Key {
+        private final long spaceId;
+        private final String userId;
+
+        Key(long spaceId, String userId) {
+            this.spaceId = spaceId;
+            this.userId = userId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            var other = (Key) o;
+            return spaceId == other.spaceId && userId.equals(other.userId);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Long.hashCode(spaceId) + userId.hashCode();
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.gelerion.security.in.action.controller;
+
+import com.lambdaworks.crypto.SCrypt;
+import com.lambdaworks.crypto.SCryptUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.time.Duration;
+import java.util.Properties;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * The scrypt cost parameters to hash new passwords with. Instead of one hard-coded setting for every machine, the
+ * parameters can be calibrated when the API starts, so that hashing a password takes about as long as the target
+ * and uses no more memory than the budget on the hardware it actually runs on.
+ * <p>
+ * Scrypt uses {@code 128 * N * r} bytes of memory, and its running time grows linearly with both N and p. The block
+ * size r stays at the usual 8, N is the largest power of two that fits both the memory budget and the time target,
+ * and if the memory budget stops N short of the target then p makes up the difference, since raising p costs time
+ * but no extra memory.
+ * <p>
+ * Calibration never picks anything weaker than {@link #DEFAULT}. It depends on the machine and on how busy it is at
+ * startup, so its result is saved with {@link #loadOrCalibrate} and reused after a restart. Nodes sharing a user table should share that file or have the
+ * parameters set in their configuration.
+ * <p>
+ * Every scrypt hash records the parameters it was made with, so {@link #isCurrent} can tell when a stored hash was
+ * made with weaker ones. Such hashes are replaced the next time the user logs in. Stronger hashes are kept as they
+ * are.
+ */
+public final class ScryptParameters {
+    private static final Logger logger = LoggerFactory.getLogger(ScryptParameters.class);
+
+    //the recommended parameters as of 2019, about 100ms and 32MiB
+    public static final ScryptParameters DEFAULT = new ScryptParameters(32768, 8, 1);
+    //never below the parameters that used to be hard-coded, however slow the machine, so that calibrating can't
+    // weaken new hashes
+    private static final int MIN_N = DEFAULT.n;
+    private static final int R = 8;
+
+    public final int n;
+    public final int r;
+    public final int p;
+
+    public ScryptParameters(int n, int r, int p) {
+        if (n < 2 || (n & (n - 1)) != 0 || r < 1 || r > 255 || p < 1 || p > 255) {
+            throw new IllegalArgumentException("invalid scrypt parameters N=" + n + ", r=" + r + ", p=" + p);
+        }
+        this.n = n;
+        this.r = r;
+        this.p = p;
+    }
+
+    public static ScryptParameters calibrate(Duration target, long maxMemoryBytes) {
+        var maxN = Math.max(MIN_N, Long.highestOneBit(maxMemoryBytes / (128L * R)));
+
+        //take the fastest of a few runs at the minimum N, the first ones include JIT compilation
+        var nanos = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            var start = System.nanoTime();
+            hash(MIN_N);
+            nanos = Math.min(nanos, System.nanoTime() - start);
+        }
+
+        var n = (long) MIN_N;
+        while (n * 2 <= maxN && nanos * (n * 2 / MIN_N) <= target.toNanos()) {
+            n *= 2;
+        }
+        var p = Math.max(1, target.toNanos() / (nanos * (n / MIN_N)));
+        var parameters = new ScryptParameters((int) n, R, (int) Math.min(p, 255));
+
+        logger.info("Calibrated scrypt to N={}, r={}, p={} ({} ms and {} MiB per hash at N={})",
+                parameters.n, parameters.r, parameters.p, nanos / 1_000_000, 128L * MIN_N * R >> 20, MIN_N);
+        return parameters;
+    }
+
+    /**
+     * The parameters saved in {@code file}, or calibrated and saved there if the file doesn't exist yet or holds
+     * parameters weaker than {@link #DEFAULT}.
+     */
+    public static ScryptParameters loadOrCalibrate(Path file, Duration target, long maxMemoryBytes) {
+        if (Files.exists(file)) {
+            try (var reader = Files.newBufferedReader(file, UTF_8)) {
+                var saved = new Properties();
+                saved.load(reader);
+                var parameters = new ScryptParameters(Integer.parseInt(saved.getProperty("N")),
+                        Integer.parseInt(saved.getProperty("r")), Integer.parseInt(saved.getProperty("p")));
+                if (parameters.n >= DEFAULT.n && parameters.r >= DEFAULT.r && parameters.p >= DEFAULT.p) {
+                    logger.info("Using scrypt parameters {} from {}", parameters, file);
+                    return parameters;
+                }
+                logger.warn("Ignoring scrypt parameters {} in {}, they are weaker than {}", parameters, file, DEFAULT);
+            } catch (IOException | RuntimeException e) {
+                logger.warn("Ignoring unreadable scrypt parameters in {}", file, e);
+            }
+        }
+
+        var parameters = calibrate(target, maxMemoryBytes);
+        try {
+            save(parameters, file);
+        } catch (IOException e) {
+            logger.warn("Failed to save scrypt parameters to {}, they will be calibrated again on restart", file, e);
+        }
+        return parameters;
+    }
+
+    private static void save(ScryptParameters parameters, Path file) throws IOException {
+        var saved = new Properties();
+        saved.setProperty("N", Integer.toString(parameters.n));
+        saved.setProperty("r", Integer.toString(parameters.r));
+        saved.setProperty("p", Integer.toString(parameters.p));
+
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        //write a temporary file and move it into place, so a crash never leaves half written parameters behind
+        var temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (var writer = Files.newBufferedWriter(temp, UTF_8)) {
+            saved.store(writer, "scrypt parameters for new password hashes");
+        }
+        Files.move(temp, file, ATOMIC_MOVE, REPLACE_EXISTING);
+    }
+
+    public String hash(String password) {
+        return SCryptUtil.scrypt(password, n, r, p);
+    }
+
+    /**
+     * Whether {@code hash} was made with parameters at least as strong as these, that is with N, r and p all at
+     * least as large. The hash stores them as {@code $s0$} followed by log2(N), r and p packed into a hex number.
+     */
+    public boolean isCurrent(String hash) {
+        var parts = hash.split("\\$");
+        if (parts.length != 5 || !"s0".equals(parts[1])) {
+            return false;
+        }
+        try {
+            var params = Long.parseLong(parts[2], 16);
+            var log2N = params >> 16 & 0xffff;
+            return (log2N >= 31 || 1 << log2N >= n) && (params >> 8 & 0xff) >= r && (params & 0xff) >= p;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private static void hash(int n) {
+        try {
+            SCrypt.scrypt("calibration".getBytes(UTF_8), new byte[16], n, R, 1, 32);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "N=" + n + ", r=" + r + ", p=" + p;
+    }
+}
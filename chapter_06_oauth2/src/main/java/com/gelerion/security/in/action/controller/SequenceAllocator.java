@@ -0,0 +1,112 @@
+package com.gelerion.security.in.action.controller;
+
+import org.dalesbred.Database;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Hands out ids from a database sequence without a query per id. The sequence is created with
+ * {@code INCREMENT BY n}, so every value it returns reserves a block of n ids for whoever fetched it: the value
+ * itself and the n - 1 after it. Ids are handed out from the current block with an atomic increment. Once half of
+ * a block is used, the next one is fetched in the background, so normally nobody waits for the database.
+ * <p>
+ * The block size is read from the sequence itself, so the two can't disagree. Ids left in a block when the API
+ * stops are never used, which leaves gaps, but ids stay unique across restarts and across several instances of the
+ * API sharing the database.
+ * <p>
+ * Blocks are fetched on a small pool of daemon threads of their own, so a slow token database can't hold up ids,
+ * and the other way round.
+ */
+public class SequenceAllocator {
+    private static final AtomicInteger threadCount = new AtomicInteger();
+    private static final ExecutorService fetcher = Executors.newFixedThreadPool(2, runnable -> {
+        var thread = new Thread(runnable, "sequence-allocator-" + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Database database;
+    private final String sequence;
+    private final long blockSize;
+    private final AtomicReference<Block> current;
+    private final AtomicReference<CompletableFuture<Block>> next = new AtomicReference<>();
+
+    public SequenceAllocator(Database database, String sequence) {
+        this.database = database;
+        this.sequence = sequence;
+        this.blockSize = database.findUniqueLong(
+                "SELECT increment FROM information_schema.sequences WHERE sequence_name = ?",
+                sequence.toUpperCase());
+        this.current = new AtomicReference<>(fetch());
+    }
+
+    public long next() {
+        while (true) {
+            var block = current.get();
+            var id = block.next.getAndIncrement();
+            if (id < block.end) {
+                //exactly one caller gets the id halfway through the block
+                if (block.end - id == (blockSize + 1) / 2) {
+                    fetchNext();
+                }
+                return id;
+            }
+
+            //the block has run out before the next one arrived, everybody waits for the same fetch
+            var fetching = fetchNext();
+            try {
+                if (current.compareAndSet(block, fetching.join())) {
+                    next.compareAndSet(fetching, null);
+                }
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException
+                        ? (RuntimeException) e.getCause()
+                        : new RuntimeException(e.getCause());
+            }
+        }
+    }
+
+    private CompletableFuture<Block> fetchNext() {
+        var fetching = next.get();
+        if (fetching != null) {
+            return fetching;
+        }
+        fetching = new CompletableFuture<>();
+        if (!next.compareAndSet(null, fetching)) {
+            return next.get();
+        }
+
+        var result = fetching;
+        CompletableFuture.supplyAsync(this::fetch, fetcher).whenComplete((block, e) -> {
+            if (e != null) {
+                //let the next caller try again
+                next.compareAndSet(result, null);
+                result.completeExceptionally(e);
+            } else {
+                result.complete(block);
+            }
+        });
+        return fetching;
+    }
+
+    private Block fetch() {
+        var start = database.findUniqueLong("SELECT NEXT VALUE FOR " + sequence);
+        return new Block(start, start + blockSize);
+    }
+
+    private static final class Block {
+        private final AtomicLong next;
+        private final long end;
+
+        Block(long start, long end) {
+            this.next = new AtomicLong(start);
+            this.end = end;
+        }
+    }
+}
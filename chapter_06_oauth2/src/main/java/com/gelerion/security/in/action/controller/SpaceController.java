@@ -3,18 +3,56 @@ package com.gelerion.security.in.action.controller;
 import org.dalesbred.Database;
 import org.json.JSONArray;
 import org.json.JSONObject;
+import org.json.JSONWriter;
 import spark.Request;
 import spark.Response;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.DateTimeException;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
-import java.util.stream.Collectors;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import static com.gelerion.security.in.action.validation.Validators.isAuthor;
+import static com.gelerion.security.in.action.validation.Validators.isPermissions;
+import static java.nio.charset.StandardCharsets.UTF_8;
 
 public class SpaceController {
+    private static final int DEFAULT_PAGE_SIZE = 100;
+    private static final int MAX_PAGE_SIZE = 1000;
+    private static final int MAX_BATCH_SIZE = 100;
+
     private final Database database;
+    private final PermissionCache permissionCache;
+    private final SequenceAllocator spaceIds;
+    private final SequenceAllocator msgIds;
+    private final MessageCache messageCache;
 
     public SpaceController(Database database) {
+        this(database, null, new SequenceAllocator(database, "space_id_seq"),
+                new SequenceAllocator(database, "msg_id_seq"), new MessageCache(1 << 20));
+    }
+
+    /**
+     * @param permissionCache invalidated whenever permissions are granted, or null if permissions aren't cached.
+     */
+    public SpaceController(Database database, PermissionCache permissionCache, SequenceAllocator spaceIds,
+                           SequenceAllocator msgIds, MessageCache messageCache) {
         this.database = database;
+        this.permissionCache = permissionCache;
+        this.spaceIds = spaceIds;
+        this.msgIds = msgIds;
+        this.messageCache = messageCache;
     }
 
     public JSONObject createSpace(Request request, Response response) {
@@ -31,8 +69,8 @@ public class SpaceController {
             throw new IllegalArgumentException("owner must match authenticated user");
         }
 
-        return database.withTransaction(tx -> {
-            var spaceId = database.findUniqueLong("SELECT NEXT VALUE FOR space_id_seq;");
+        var spaceId = spaceIds.next();
+        database.withVoidTransaction(tx -> {
             database.updateUnique("INSERT INTO spaces(space_id, name, owner) VALUES(?, ?, ?);",
                     spaceId, spaceName, owner);
 
@@ -42,69 +80,230 @@ public class SpaceController {
 
             response.status(201);
             response.header("Location", "/spaces/" + spaceId);
-
-            return new JSONObject()
-                    .put("name", spaceName)
-                    .put("uri", "/spaces/" + spaceId);
-
         });
+
+        //a request for the space made before it existed may have cached the owner as a non-member
+        invalidate(spaceId, owner);
+        return new JSONObject()
+                .put("name", spaceName)
+                .put("uri", "/spaces/" + spaceId);
     }
 
     public JSONObject postMessage(Request request, Response response) {
         var spaceId = Long.parseLong(request.params(":spaceId"));
         var json = new JSONObject(request.body());
         var user = json.getString("author");
-        if (!user.matches("[a-zA-Z][a-zA-Z0-9]{0,29}")) {
+        var message = json.getString("message");
+        validateMessage(user, message);
+
+        var msgId = msgIds.next();
+        database.updateUnique(
+                "INSERT INTO messages(space_id, msg_id, msg_time," +
+                        "author, msg_text) " +
+                        "VALUES(?, ?, current_timestamp, ?, ?)",
+                spaceId, msgId, user, message);
+
+        response.status(201);
+        var uri = "/spaces/" + spaceId + "/messages/" + msgId;
+        response.header("Location", uri);
+        return new JSONObject().put("uri", uri);
+    }
+
+    /*
+     Posts several messages to a space in one request, for clients such as bots that post a lot. The messages are
+     all validated before anything is written, and they are inserted with one JDBC batch in one transaction, so
+     either all of them are posted or none.
+     */
+    public JSONObject postMessages(Request request, Response response) {
+        var spaceId = Long.parseLong(request.params(":spaceId"));
+        var json = new JSONArray(request.body());
+        if (json.isEmpty() || json.length() > MAX_BATCH_SIZE) {
+            throw new IllegalArgumentException("between 1 and " + MAX_BATCH_SIZE + " messages can be posted at once");
+        }
+
+        var messages = new ArrayList<List<Object>>(json.length());
+        for (int i = 0; i < json.length(); i++) {
+            var message = json.getJSONObject(i);
+            var user = message.getString("author");
+            var text = message.getString("message");
+            validateMessage(user, text);
+            messages.add(Arrays.asList(spaceId, null, user, text));
+        }
+
+        var uris = new JSONArray();
+        for (var message : messages) {
+            var msgId = msgIds.next();
+            message.set(1, msgId);
+            uris.put("/spaces/" + spaceId + "/messages/" + msgId);
+        }
+        database.withVoidTransaction(tx -> database.updateBatch(
+                "INSERT INTO messages(space_id, msg_id, msg_time, author, msg_text) " +
+                        "VALUES(?, ?, current_timestamp, ?, ?)",
+                messages));
+
+        response.status(201);
+        return new JSONObject().put("uris", uris);
+    }
+
+    private static void validateMessage(String author, String message) {
+        if (!isAuthor(author)) {
             throw new IllegalArgumentException("invalid username");
         }
-        var message = json.getString("message");
         if (message.length() > 1024) {
             throw new IllegalArgumentException("message is too long");
         }
-
-        return database.withTransaction(tx -> {
-            var msgId = database.findUniqueLong("SELECT NEXT VALUE FOR msg_id_seq;");
-            database.updateUnique(
-                    "INSERT INTO messages(space_id, msg_id, msg_time," +
-                            "author, msg_text) " +
-                            "VALUES(?, ?, current_timestamp, ?, ?)",
-                    spaceId, msgId, user, message);
-
-            response.status(201);
-            var uri = "/spaces/" + spaceId + "/messages/" + msgId;
-            response.header("Location", uri);
-            return new JSONObject().put("uri", uri);
-        });
     }
 
-    public Message readMessage(Request request, Response response) {
+    /*
+     Messages never change once posted, so they are served from the MessageCache with an ETag. A client that sends
+     the ETag back in If-None-Match gets a 304 without a body, and a cached message costs neither a query nor
+     serializing it again. Clients may keep the message, but have to check back with the ETag before using it, so
+     that they notice when it is deleted.
+     */
+    public String readMessage(Request request, Response response) {
         var spaceId = Long.parseLong(request.params(":spaceId"));
         var msgId = Long.parseLong(request.params(":msgId"));
 
-        var message = database.findUnique(Message.class,
+        var message = messageCache.get(spaceId, msgId, () -> database.findUnique(Message.class,
                 "SELECT space_id, msg_id, author, msg_time, msg_text " +
                         "FROM messages WHERE msg_id = ? AND space_id = ?",
-                msgId, spaceId);
+                msgId, spaceId));
+
+        response.header("ETag", message.etag());
+        //replaces the no-store every response gets, Response.header would add a second Cache-Control
+        response.raw().setHeader("Cache-Control", "private, no-cache");
+        if (message.matches(request.headers("If-None-Match"))) {
+            response.status(304);
+            return "";
+        }
+        response.status(200);
+        return message.json();
+    }
+
+    public JSONObject deleteMessage(Request request, Response response) {
+        var spaceId = Long.parseLong(request.params(":spaceId"));
+        var msgId = Long.parseLong(request.params(":msgId"));
+
+        database.update("DELETE FROM messages WHERE msg_id = ? AND space_id = ?", msgId, spaceId);
+        messageCache.invalidate(msgId);
 
         response.status(200);
-        return message;
+        return new JSONObject();
     }
 
-    public JSONArray findMessages(Request request, Response response) {
+    /*
+     Lists the messages of a space one page at a time, oldest first. A page ends with a "next" cursor if there are
+     more messages, which the client passes back as ?cursor= to get the next page. The cursor is the time and id of
+     the last message on the page, and the next page starts right after it, so that the query is an index range scan
+     however far into the list the client is, and messages posted meanwhile don't shift the pages.
+
+     A page lists the URIs of the messages, unless the client asks for ?expand=messages, in which case it holds the
+     messages themselves, so that showing a space doesn't take another request per message. With ?ids= the client
+     gets the messages it names instead of a page, for when it already knows the URIs.
+
+     The response is written to the client as it is read from the database, without building it in memory first.
+     */
+    public Object findMessages(Request request, Response response) throws IOException {
+        if (request.queryParams("ids") != null) {
+            return readMessages(request, response);
+        }
+
         var since = Instant.now().minus(1, ChronoUnit.DAYS);
         if (request.queryParams("since") != null) {
             since = Instant.parse(request.queryParams("since"));
         }
+        var limit = DEFAULT_PAGE_SIZE;
+        if (request.queryParams("limit") != null) {
+            limit = Integer.parseInt(request.queryParams("limit"));
+            if (limit < 1 || limit > MAX_PAGE_SIZE) {
+                throw new IllegalArgumentException("limit must be between 1 and " + MAX_PAGE_SIZE);
+            }
+        }
         var spaceId = Long.parseLong(request.params(":spaceId"));
+        var after = request.queryParams("cursor") != null
+                ? Cursor.parse(request.queryParams("cursor"))
+                : new Cursor(since, Long.MIN_VALUE);
+        var expand = "messages".equals(request.queryParams("expand"));
+
+        response.status(200);
+        var out = new BufferedWriter(new OutputStreamWriter(response.raw().getOutputStream(), UTF_8));
+        var pageSize = limit;
+        //one more row than the page holds, to find out whether there is a next page
+        database.executeQuery(rows -> {
+            var json = new JSONWriter(out).object().key("messages").array();
+            var count = 0;
+            var more = false;
+            Cursor last = null;
+            while (rows.next()) {
+                if (count++ == pageSize) {
+                    more = true;
+                    break;
+                }
+                var msgId = rows.getLong("msg_id");
+                if (expand) {
+                    writeMessage(json, spaceId, rows);
+                } else {
+                    json.value("/spaces/" + spaceId + "/messages/" + msgId);
+                }
+                last = new Cursor(rows.getTimestamp("msg_time").toInstant(), msgId);
+            }
+            json.endArray();
+            if (more) {
+                json.key("next").value(last.toString());
+            }
+            json.endObject();
+            return null;
+        }, "SELECT msg_id, msg_time" + (expand ? ", author, msg_text" : "") + " FROM messages " +
+                "WHERE space_id = ? AND msg_time >= ? AND (msg_time > ? OR (msg_time = ? AND msg_id > ?)) " +
+                "ORDER BY msg_time, msg_id LIMIT ?",
+                spaceId, since, after.time, after.time, after.msgId, limit + 1);
+        out.flush();
 
-        var messages = database.findAll(Long.class,
-                "SELECT msg_id FROM messages WHERE space_id = ? AND msg_time >= ?;",
-                spaceId, since);
+        //the body has already been written
+        return "";
+    }
+
+    //?ids=1,2,3 -- ids of messages that don't exist, or are in another space, are left out
+    private Object readMessages(Request request, Response response) throws IOException {
+        var spaceId = Long.parseLong(request.params(":spaceId"));
+        var msgIds = new LinkedHashSet<Long>();
+        for (var msgId : request.queryParams("ids").split(",")) {
+            msgIds.add(Long.parseLong(msgId.trim()));
+        }
+        if (msgIds.size() > MAX_BATCH_SIZE) {
+            throw new IllegalArgumentException("at most " + MAX_BATCH_SIZE + " messages can be read at once");
+        }
+
+        var args = new ArrayList<Object>(msgIds.size() + 1);
+        args.add(spaceId);
+        args.addAll(msgIds);
 
         response.status(200);
-        return new JSONArray(messages.stream()
-                .map(msgId -> "/spaces/" + spaceId + "/messages/" + msgId)
-                .collect(Collectors.toList()));
+        var out = new BufferedWriter(new OutputStreamWriter(response.raw().getOutputStream(), UTF_8));
+        database.executeQuery(rows -> {
+            var json = new JSONWriter(out).object().key("messages").array();
+            while (rows.next()) {
+                writeMessage(json, spaceId, rows);
+            }
+            json.endArray().endObject();
+            return null;
+        }, "SELECT msg_id, msg_time, author, msg_text FROM messages " +
+                "WHERE space_id = ? AND msg_id IN (" + String.join(", ", Collections.nCopies(msgIds.size(), "?")) + ") " +
+                "ORDER BY msg_time, msg_id",
+                args.toArray());
+        out.flush();
+
+        return "";
+    }
+
+    //the same JSON as Message.toString, straight from the row
+    private static void writeMessage(JSONWriter json, long spaceId, ResultSet row) throws SQLException {
+        json.object()
+                .key("uri").value("/spaces/" + spaceId + "/messages/" + row.getLong("msg_id"))
+                .key("author").value(row.getString("author"))
+                .key("time").value(row.getTimestamp("msg_time").toInstant().toString())
+                .key("message").value(row.getString("msg_text"))
+                .endObject();
     }
 
     public JSONObject addMember(Request request, Response response) {
@@ -113,12 +312,13 @@ public class SpaceController {
         var userToAdd = json.getString("username");
         var perms = json.getString("permissions");
 
-        if (!perms.matches("r?w?d?")) {
+        if (!isPermissions(perms)) {
             throw new IllegalArgumentException("invalid permissions");
         }
 
         database.updateUnique("INSERT INTO permissions(space_id, user_id, perms) VALUES(?, ?, ?)",
                 spaceId, userToAdd, perms);
+        invalidate(spaceId, userToAdd);
 
         response.status(200);
         return new JSONObject()
@@ -126,6 +326,44 @@ public class SpaceController {
                 .put("permissions", perms);
     }
 
+    private void invalidate(long spaceId, String userId) {
+        if (permissionCache != null) {
+            permissionCache.invalidate(spaceId, userId);
+        }
+    }
+
+    /**
+     * Where a page of messages ended. Clients treat it as an opaque string.
+     */
+    private static final class Cursor {
+        private final Instant time;
+        private final long msgId;
+
+        Cursor(Instant time, long msgId) {
+            this.time = time;
+            this.msgId = msgId;
+        }
+
+        static Cursor parse(String value) {
+            var bytes = ByteBuffer.wrap(Base64.getUrlDecoder().decode(value));
+            if (bytes.remaining() != 20) {
+                throw new IllegalArgumentException("invalid cursor");
+            }
+            try {
+                return new Cursor(Instant.ofEpochSecond(bytes.getLong(), bytes.getInt()), bytes.getLong());
+            } catch (DateTimeException e) {
+                throw new IllegalArgumentException("invalid cursor");
+            }
+        }
+
+        @Override
+        public String toString() {
+            var bytes = ByteBuffer.allocate(20)
+                    .putLong(time.getEpochSecond()).putInt(time.getNano()).putLong(msgId);
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes.array());
+        }
+    }
+
     public static class Message {
         private final long spaceId;
         private final long msgId;
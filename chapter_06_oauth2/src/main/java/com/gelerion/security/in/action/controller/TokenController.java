@@ -1,13 +1,18 @@
 package com.gelerion.security.in.action.controller;
 
+import com.gelerion.security.in.action.token.TokenAttributes;
 import com.gelerion.security.in.action.token.TokenStore;
 import org.json.JSONObject;
 import spark.Filter;
 import spark.Request;
 import spark.Response;
 
+import java.time.Duration;
 import java.time.temporal.ChronoUnit;
-import java.util.Arrays;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import static java.time.Instant.now;
 import static spark.Spark.halt;
@@ -26,10 +31,9 @@ public class TokenController {
         String subject = request.attribute("subject");
         var expiry = now().plus(10, ChronoUnit.MINUTES);
 
-        var token = new TokenStore.Token(expiry, subject);
         //[scoped tokens] add attributes
         var scope = request.queryParamOrDefault("scope", DEFAULT_SCOPES);
-        token.attributes.put("scope", scope);
+        var token = new TokenStore.Token(expiry, subject, TokenAttributes.of("scope", scope));
 
         var tokenId = tokenStore.create(request, token);
 
@@ -41,22 +45,70 @@ public class TokenController {
     }
 
     public void validateToken(Request request, Response response) {
-        var tokenId = request.headers("Authorization");
-        if (tokenId == null || !tokenId.startsWith("Bearer ")) {
+        var tokenId = bearerToken(request);
+        if (tokenId == null) {
             return;
         }
-        tokenId = tokenId.substring(7);
 
-        tokenStore.read(request, tokenId).ifPresent(token -> {
-            if (now().isBefore(token.expiry)) {
-                request.attribute("subject", token.username);
-                token.attributes.forEach(request::attribute);
-            } else {
-                response.header("WWW-Authenticate",
-                        "Bearer error=\"invalid_token\"," +
-                              "error_description=\"Expired\"");
+        tokenStore.read(request, tokenId).ifPresent(token -> applyToken(request, response, token));
+    }
+
+    //[async] an opt-in timeout guard, not a way to free request threads: Spark runs filters synchronously, so the
+    // Jetty thread still waits for the token store, just never longer than the timeout. After that the request gets a
+    // 503 with Retry-After, rather than an unresponsive AS holding threads indefinitely. Only worth it for a store that
+    // calls out to an AS, a DatabaseTokenStore's readAsync queues on a pool smaller than Jetty's and would turn load
+    // into 503s. The token is applied on the request thread, never from the store's callback, so a late answer can't
+    // touch a request that has already been answered
+    public Filter validateToken(Duration timeout) {
+        return (request, response) -> {
+            var tokenId = bearerToken(request);
+            if (tokenId == null) {
+                return;
+            }
+
+            Optional<TokenStore.Token> token;
+            try {
+                token = tokenStore.readAsync(request, tokenId).toCompletableFuture()
+                        .get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                response.header("Retry-After", "1");
+                halt(503, "{\"error\": \"token validation timed out\"}");
+                return;
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new RuntimeException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
             }
-        });
+
+            token.ifPresent(t -> applyToken(request, response, t));
+        };
+    }
+
+    private static String bearerToken(Request request) {
+        var tokenId = request.headers("Authorization");
+        if (tokenId == null || !tokenId.startsWith("Bearer ")) {
+            return null;
+        }
+        return tokenId.substring(7);
+    }
+
+    private static void applyToken(Request request, Response response, TokenStore.Token token) {
+        if (now().isBefore(token.expiry)) {
+            request.attribute("subject", token.username);
+            token.attributes.forEach(request::attribute);
+            //[scoped tokens] parse the scope once here, every requireScope filter after this only tests a bit. Always
+            // set, or cleared, after the attributes are copied, so a token attribute named "scopes" can't stand in
+            var scope = token.attributes.get("scope");
+            request.attribute("scopes", scope != null ? Scopes.parse(scope) : null);
+        } else {
+            response.header("WWW-Authenticate",
+                    "Bearer error=\"invalid_token\"," +
+                          "error_description=\"Expired\"");
+        }
     }
 
     public JSONObject logout(Request request, Response response) {
@@ -77,14 +129,16 @@ public class TokenController {
     // The Bearer authentication scheme has a dedicated error code insufficient_scope to indicate that the caller needs
     // a token with a different scope, so you can indicate that in the WWW-Authenticate header
     public Filter requireScope(String method, String requiredScope) {
+        var bit = Scopes.bit(requiredScope);
         return (request, response) -> {
             if (!method.equalsIgnoreCase(request.requestMethod()))
                 return;
 
-            var tokenScope = request.<String>attribute("scope");
-            if (tokenScope == null) return;
+            var tokenScopes = request.<Scopes>attribute("scopes");
+            if (tokenScopes == null) return;
 
-            if (!Arrays.asList(tokenScope.split(" ")).contains(requiredScope)) {
+            var granted = bit != 0 ? tokenScopes.contains(bit) : tokenScopes.contains(requiredScope);
+            if (!granted) {
                 response.header("WWW-Authenticate",
                         "Bearer error=\"insufficient_scope\"," +
                                 "scope=\"" + requiredScope + "\"");
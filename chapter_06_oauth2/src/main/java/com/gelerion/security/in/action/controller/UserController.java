@@ -3,19 +3,45 @@ package com.gelerion.security.in.action.controller;
 import com.lambdaworks.crypto.*;
 import org.dalesbred.*;
 import org.json.*;
+import org.slf4j.*;
 import spark.*;
 
 import java.nio.charset.*;
 import java.util.*;
+import java.util.concurrent.*;
 
+import static com.gelerion.security.in.action.validation.Validators.isUsername;
 import static spark.Spark.*;
 
 public class UserController {
-    private static final String USERNAME_PATTERN = "[a-zA-Z][a-zA-Z0-9]{1,29}";
+    private static final Logger logger = LoggerFactory.getLogger(UserController.class);
     private final Database database;
+    private final PasswordHashingExecutor passwordHashing;
+    private final ScryptParameters scrypt;
+    private final CredentialCache credentialCache;
+    private final PermissionCache permissionCache;
+    //users whose hash is being upgraded right now, so that a burst of logins rehashes only once
+    private final Set<String> rehashing = ConcurrentHashMap.newKeySet();
 
     public UserController(Database database) {
+        this(database, new PasswordHashingExecutor(), ScryptParameters.DEFAULT, null, null);
+    }
+
+    /**
+     * @param passwordHashing runs scrypt off the request threads.
+     * @param scrypt          the parameters to hash passwords with. Hashes made with other parameters are upgraded
+     *                        to these when their user next logs in.
+     * @param credentialCache remembers recently verified Basic credentials, or null to run scrypt on every request.
+     * @param permissionCache remembers the permissions users have on spaces, or null to look them up on every
+     *                        request. It must be the same one the {@link SpaceController} invalidates.
+     */
+    public UserController(Database database, PasswordHashingExecutor passwordHashing, ScryptParameters scrypt,
+                          CredentialCache credentialCache, PermissionCache permissionCache) {
         this.database = database;
+        this.passwordHashing = passwordHashing;
+        this.scrypt = scrypt;
+        this.credentialCache = credentialCache;
+        this.permissionCache = permissionCache;
     }
 
     public JSONObject registerUser(Request request, Response response) {
@@ -23,7 +49,7 @@ public class UserController {
         var username = json.getString("username");
         var password = json.getString("password");
 
-        if (!username.matches(USERNAME_PATTERN)) {
+        if (!isUsername(username)) {
             throw new IllegalArgumentException("invalid username");
         }
         if (password.length() < 8) {
@@ -36,12 +62,13 @@ public class UserController {
         Scrypt takes several parameters to tune the amount of time and memory that it will use. You do not need
         to understand these numbers, just know that larger numbers will use more CPU time and memory. You can use
         the recommended parameters as of 2019 (see https://blog.filippo.io/the-scrypt-parameters/ for a discussion
-        of Scrypt parameters), which should take around 100ms on a single CPU and 32MiB of memory.
+        of Scrypt parameters), which should take around 100ms on a single CPU and 32MiB of memory, or calibrate them
+        to a similar budget on the machine the API runs on (see ScryptParameters).
 
         This may seem an excessive amount of time and memory, but these parameters have been carefully chosen based
         on the speed at which attackers can guess passwords.
          */
-        var hash = SCryptUtil.scrypt(password, 32768, 8, 1);
+        var hash = passwordHashing.execute(() -> scrypt.hash(password));
 
         /*
         The Scrypt library generates a unique random salt value for each password hash. The hash string that gets
@@ -83,7 +110,7 @@ public class UserController {
         var username = components[0];
         var password = components[1];
 
-        if (!username.matches(USERNAME_PATTERN)) {
+        if (!isUsername(username)) {
             throw new IllegalArgumentException("invalid username");
         }
 
@@ -94,9 +121,43 @@ public class UserController {
          supplied password with the same salt and parameters, and then finally compare the hashed password with
          the stored hash
          */
-        if (hash.isPresent() && SCryptUtil.check(password, hash.get())) {
+        if (hash.isPresent() && checkPassword(username, password, hash.get())) {
             request.attribute("subject", username);
+            if (!scrypt.isCurrent(hash.get())) {
+                rehash(username, password, hash.get());
+            }
+        }
+    }
+
+    /*
+     This is the only time the API sees the password of an existing user, so it is the chance to upgrade a hash made
+     with older parameters. The new hash is computed in the background, the login doesn't wait for it, and if the
+     pool is busy the upgrade waits for another login. The update only applies if the hash hasn't changed meanwhile.
+     */
+    private void rehash(String username, String password, String oldHash) {
+        if (!rehashing.add(username)) {
+            return;
+        }
+        var queued = passwordHashing.tryExecute(() -> {
+            try {
+                database.update("UPDATE users SET pw_hash = ? WHERE user_id = ? AND pw_hash = ?",
+                        scrypt.hash(password), username, oldHash);
+            } catch (RuntimeException e) {
+                logger.warn("Failed to upgrade the password hash of {}", username, e);
+            } finally {
+                rehashing.remove(username);
+            }
+        });
+        if (!queued) {
+            rehashing.remove(username);
+        }
+    }
+
+    private boolean checkPassword(String username, String password, String hash) {
+        if (credentialCache != null) {
+            return credentialCache.verify(username, password, hash);
         }
+        return passwordHashing.execute(() -> SCryptUtil.check(password, hash));
     }
 
     /*
@@ -113,6 +174,7 @@ public class UserController {
     }
 
     public Filter requirePermission(String method, String permission) {
+        var required = PermissionCache.mask(permission);
         return (request, response) -> {
             // ignore requests that don’t match the request method
             if (!method.equalsIgnoreCase(request.requestMethod())) {
@@ -125,14 +187,19 @@ public class UserController {
             var spaceId = Long.parseLong(request.params(":spaceId"));
             var username = (String) request.attribute("subject");
 
-            var perms = database.findOptional(String.class,
-                    "SELECT perms FROM permissions WHERE space_id = ? AND user_id = ?",
-                    spaceId, username).orElse("");
-
-            if (!perms.contains(permission)) {
+            if ((permissions(spaceId, username) & required) != required) {
                 halt(403);
             }
         };
     }
 
+    private int permissions(long spaceId, String username) {
+        if (permissionCache != null) {
+            return permissionCache.permissions(spaceId, username);
+        }
+        return PermissionCache.mask(database.findOptional(String.class,
+                "SELECT perms FROM permissions WHERE space_id = ? AND user_id = ?",
+                spaceId, username).orElse(""));
+    }
+
 }
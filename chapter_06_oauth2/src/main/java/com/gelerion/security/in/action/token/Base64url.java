@@ -1,10 +1,21 @@
 package com.gelerion.security.in.action.token;
 
+import java.util.Arrays;
 import java.util.Base64;
 
 public class Base64url {
     private static final Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
     private static final Base64.Decoder decoder = Base64.getUrlDecoder();
+    //maps a Base64url character to its 6-bit value, or -1 if it isn't part of the alphabet
+    private static final byte[] ALPHABET = new byte[128];
+
+    static {
+        Arrays.fill(ALPHABET, (byte) -1);
+        var alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+        for (int i = 0; i < alphabet.length(); i++) {
+            ALPHABET[alphabet.charAt(i)] = (byte) i;
+        }
+    }
 
     public static String encode(byte[] data) {
         return encoder.encodeToString(data);
@@ -13,4 +24,40 @@ public class Base64url {
     public static byte[] decode(String encoded) {
         return decoder.decode(encoded);
     }
+
+    /**
+     * Decodes unpadded Base64url into {@code out} without allocating. Returns the number of bytes written, or -1 if
+     * the input isn't valid Base64url or doesn't fit.
+     */
+    static int decode(String encoded, byte[] out) {
+        return decode(encoded, 0, out);
+    }
+
+    /**
+     * Like {@link #decode(String, byte[])}, for the part of {@code encoded} that starts at {@code offset}.
+     */
+    static int decode(String encoded, int offset, byte[] out) {
+        var chars = encoded.length() - offset;
+        if (chars % 4 == 1 || (long) chars * 3 / 4 > out.length) {
+            return -1;
+        }
+
+        var bits = 0;
+        var bitCount = 0;
+        var length = 0;
+        for (int i = offset; i < encoded.length(); i++) {
+            var c = encoded.charAt(i);
+            var value = c < 128 ? ALPHABET[c] : -1;
+            if (value < 0) {
+                return -1;
+            }
+            bits = (bits << 6) | value;
+            bitCount += 6;
+            if (bitCount >= 8) {
+                bitCount -= 8;
+                out[length++] = (byte) (bits >>> bitCount);
+            }
+        }
+        return length;
+    }
 }
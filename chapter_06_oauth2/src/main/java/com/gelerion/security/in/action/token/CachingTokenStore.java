@@ -0,0 +1,90 @@
+package com.gelerion.security.in.action.token;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import spark.Request;
+
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Self-contained tokens are verified from scratch on every request: the JWT is parsed, its HMAC checked or its
+ * content decrypted, and the claims turned into a new {@link Token}. Clients reuse the same token for minutes, so
+ * this decorator remembers the result for tokens that were valid, and a repeated token skips the delegate entirely.
+ * <p>
+ * Entries are keyed by the serialized token itself. Its hash code is cheap to compute, and comparing the whole
+ * string on a hit means a colliding hash can never return somebody else's token. The cache holds at most
+ * {@code maximumSize} tokens, evicting the least recently used. An entry is never returned after the token's
+ * expiry, and {@link #revoke} drops it once the delegate has revoked the token.
+ */
+public class CachingTokenStore implements TokenStore {
+    private final TokenStore delegate;
+    private final Cache<String, TokenSnapshot> cache;
+    private final AtomicLong revocations = new AtomicLong();
+
+    public CachingTokenStore(TokenStore delegate, int maximumSize) {
+        this.delegate = delegate;
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .recordStats()
+                .build();
+    }
+
+    @Override
+    public String create(Request request, Token token) {
+        return delegate.create(request, token);
+    }
+
+    @Override
+    public Optional<Token> read(Request request, String tokenId) {
+        var cached = cache.getIfPresent(tokenId);
+        if (cached != null) {
+            if (!cached.isExpired()) {
+                return Optional.of(cached.toToken());
+            }
+            cache.invalidate(tokenId);
+        }
+
+        var revocationsBefore = revocations.get();
+        var token = delegate.read(request, tokenId);
+        cacheIfValid(tokenId, token, revocationsBefore);
+        return token;
+    }
+
+    @Override
+    public CompletionStage<Optional<Token>> readAsync(Request request, String tokenId) {
+        var cached = cache.getIfPresent(tokenId);
+        if (cached != null && !cached.isExpired()) {
+            return CompletableFuture.completedFuture(Optional.of(cached.toToken()));
+        }
+
+        var revocationsBefore = revocations.get();
+        return delegate.readAsync(request, tokenId).thenApply(token -> {
+            cacheIfValid(tokenId, token, revocationsBefore);
+            return token;
+        });
+    }
+
+    private void cacheIfValid(String tokenId, Optional<Token> token, long revocationsBefore) {
+        token.ifPresent(t -> {
+            cache.put(tokenId, new TokenSnapshot(t));
+            //a revoke may have run while the delegate was verifying the token, don't let it come back from the cache
+            if (revocations.get() != revocationsBefore) {
+                cache.invalidate(tokenId);
+            }
+        });
+    }
+
+    @Override
+    public void revoke(Request request, String tokenId) {
+        delegate.revoke(request, tokenId);
+        revocations.incrementAndGet();
+        cache.invalidate(tokenId);
+    }
+
+    public double hitRate() {
+        return cache.stats().hitRate();
+    }
+}
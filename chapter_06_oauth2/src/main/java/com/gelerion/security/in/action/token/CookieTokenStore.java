@@ -53,8 +53,7 @@ public class CookieTokenStore implements TokenStore {
             return Optional.empty();
         }
 
-        var token = new Token(session.attribute("expiry"), session.attribute("username"));
-        token.attributes.putAll(session.attribute("attrs"));
+        var token = new Token(session.attribute("expiry"), session.attribute("username"), session.attribute("attrs"));
 
         return Optional.of(token);
     }
@@ -2,10 +2,23 @@ package com.gelerion.security.in.action.token;
 
 import java.security.SecureRandom;
 import java.sql.*;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import org.dalesbred.Database;
 import org.json.JSONObject;
 import org.slf4j.*;
@@ -15,21 +28,79 @@ import static com.gelerion.security.in.action.token.CookieTokenStore.sha256;
 
 public class DatabaseTokenStore implements TokenStore {
     private static final Logger logger = LoggerFactory.getLogger(DatabaseTokenStore.class);
+    //the size of the attributes column
+    private static final int MAX_ATTRIBUTES_LENGTH = 4096;
+    //how many batches can be waiting for the database before logins insert their token themselves
+    private static final int MAX_PENDING_BATCHES = 16;
+    private static final String INSERT_TOKEN =
+            "INSERT INTO tokens(token_id, user_id, expiry, attributes) VALUES(?, ?, ?, ?)";
 
     private final Database database;
     private final SecureRandom secureRandom;
+    private final ScheduledExecutorService scheduler;
+    private final ScheduledFuture<?> scheduledSweeps;
+    private volatile ExpiredTokenSweeper sweeper;
+
+    //[write-behind] tokens created but not yet inserted, keyed by the hashed token id
+    private final Map<String, PendingToken> pending = new ConcurrentHashMap<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final Object flushLock = new Object();
+    private final int batchSize;
+    private final int maxPending;
+
+    //[near-cache] tokens already read from the database, keyed by the hashed token id
+    private final Cache<String, TokenSnapshot> cache;
+    private final AtomicLong revocations = new AtomicLong();
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
 
     public DatabaseTokenStore(Database database) {
+        this(database, 0, Duration.ZERO, 0);
+    }
+
+    public DatabaseTokenStore(Database database, int batchSize, Duration maxDelay) {
+        this(database, batchSize, maxDelay, 0);
+    }
+
+    /**
+     * A {@code batchSize} greater than 0 enables write-behind. Instead of a synchronous INSERT per login, new tokens
+     * are queued in memory and written with a single JDBC batch once {@code batchSize} tokens are pending or
+     * {@code maxDelay} has elapsed, whichever happens first. Tokens that are still queued are served from memory,
+     * so a client can use its token immediately.
+     * <p>
+     * {@code maxDelay} is the durability window: if the process dies, tokens created within the last
+     * {@code maxDelay} are lost and their owners have to log in again. If the database falls behind and
+     * {@value #MAX_PENDING_BATCHES} batches worth of tokens are queued, further logins insert their token themselves
+     * until the queue has drained.
+     * <p>
+     * A {@code cacheSize} greater than 0 keeps up to that many tokens in memory after they are read from the database,
+     * so repeated requests with the same token skip the SELECT. A cached token is never returned after its expiry,
+     * and {@link #revoke} drops it from the cache before returning, so logout takes effect immediately on this node.
+     */
+    public DatabaseTokenStore(Database database, int batchSize, Duration maxDelay, int cacheSize) {
         this.database = database;
         //To ensure that Java uses the non-blocking /dev/urandom device for seeding the SecureRandom class,
         // pass the option -Djava.security.egd=file: /dev/urandom to the JVM
         this.secureRandom = new SecureRandom();
+        this.batchSize = batchSize;
+        this.maxPending = batchSize * MAX_PENDING_BATCHES;
+        if (batchSize > 0 && (maxDelay.isNegative() || maxDelay.isZero())) {
+            throw new IllegalArgumentException("maxDelay must be positive when write-behind is enabled, got "
+                    + maxDelay);
+        }
+        this.cache = cacheSize > 0 ? CacheBuilder.newBuilder().maximumSize(cacheSize).build() : null;
 
-        Executors.newSingleThreadScheduledExecutor()
-                .scheduleAtFixedRate(this::deleteExpiredTokens,10, 10, TimeUnit.MINUTES);
+        this.scheduler = TokenStoreScheduler.shared();
+        this.sweeper = new ExpiredTokenSweeper(database, scheduler);
+        this.scheduledSweeps = scheduler.scheduleWithFixedDelay(this::scheduledSweep, 10, 10, TimeUnit.MINUTES);
+
+        if (batchSize > 0) {
+            var delayMillis = maxDelay.toMillis();
+            scheduler.scheduleWithFixedDelay(this::flush, delayMillis, delayMillis, TimeUnit.MILLISECONDS);
+        }
     }
 
-    private String randomId() {
+    static String randomId(SecureRandom secureRandom) {
         //[tokens] we'll use 160-bit token IDs
         var bytes = new byte[20];
         secureRandom.nextBytes(bytes);
@@ -38,27 +109,172 @@ public class DatabaseTokenStore implements TokenStore {
 
     @Override
     public String create(Request request, Token token) {
-        var tokenId = randomId();
+        var tokenId = randomId(secureRandom);
+        create(hash(tokenId), token);
+        return tokenId;
+    }
+
+    //the methods below take the already hashed token id, so that the ShardedTokenStore only has to hash it once
+    void create(String hashedId, Token token) {
         var attrs = new JSONObject(token.attributes).toString();
+        //rejected here, a queued token that can't be inserted would only fail once its owner is already using it
+        if (attrs.length() > MAX_ATTRIBUTES_LENGTH) {
+            throw new IllegalArgumentException("token attributes are too long");
+        }
 
-        database.updateUnique("INSERT INTO tokens(token_id, user_id, expiry, attributes) " +
-                        "VALUES(?, ?, ?, ?)", hash(tokenId), token.username, token.expiry, attrs);
+        if (batchSize > 0 && pending.size() < maxPending) {
+            pending.put(hashedId, new PendingToken(token.username, token.expiry, attrs));
+            if (pending.size() >= batchSize && flushScheduled.compareAndSet(false, true)) {
+                scheduler.execute(this::flush);
+            }
+            return;
+        }
 
-        return tokenId;
+        database.updateUnique(INSERT_TOKEN, hashedId, token.username, token.expiry, attrs);
     }
 
     @Override
     public Optional<Token> read(Request request, String tokenId) {
-        return database.findOptional(this::readToken,
-                "SELECT user_id, expiry, attributes FROM tokens WHERE token_id = ?", hash(tokenId));
+        return read(hash(tokenId));
+    }
+
+    Optional<Token> read(String hashedId) {
+        var queued = pending.get(hashedId);
+        if (queued != null) {
+            return Optional.of(toToken(queued.username, queued.expiry, queued.attributes));
+        }
+
+        if (cache == null) {
+            return database.findOptional(this::readToken,
+                    "SELECT user_id, expiry, attributes FROM tokens WHERE token_id = ?", hashedId);
+        }
+
+        var cached = cache.getIfPresent(hashedId);
+        if (cached != null) {
+            //[near-cache] an entry must never outlive the token itself
+            if (!cached.isExpired()) {
+                cacheHits.increment();
+                return Optional.of(cached.toToken());
+            }
+            cache.invalidate(hashedId);
+        }
+        cacheMisses.increment();
+
+        var revocationsBefore = revocations.get();
+        var token = database.findOptional(this::readToken,
+                "SELECT user_id, expiry, attributes FROM tokens WHERE token_id = ?", hashedId);
+        token.ifPresent(t -> {
+            cache.put(hashedId, new TokenSnapshot(t));
+            //[near-cache] a revoke may have deleted the row after our SELECT, don't let it come back from the cache
+            if (revocations.get() != revocationsBefore) {
+                cache.invalidate(hashedId);
+            }
+        });
+        return token;
+    }
+
+    //[async] tokens that are queued or cached are answered straight away, only a database read needs another thread
+    @Override
+    public CompletableFuture<Optional<Token>> readAsync(Request request, String tokenId) {
+        return readAsync(hash(tokenId));
+    }
+
+    CompletableFuture<Optional<Token>> readAsync(String hashedId) {
+        var cached = cache == null ? null : cache.getIfPresent(hashedId);
+        if (pending.containsKey(hashedId) || (cached != null && !cached.isExpired())) {
+            return CompletableFuture.completedFuture(read(hashedId));
+        }
+        return CompletableFuture.supplyAsync(() -> read(hashedId), TokenStoreScheduler.blocking());
     }
 
     @Override
     public void revoke(Request request, String tokenId) {
-        database.update("DELETE FROM tokens WHERE token_id = ?", hash(tokenId));
+        revoke(hash(tokenId));
+    }
+
+    void revoke(String hashedId) {
+        //[write-behind] wait for an in-progress flush, otherwise the DELETE could run before the batch INSERT
+        // and the revoked token would come back to life
+        synchronized (flushLock) {
+            pending.remove(hashedId);
+        }
+        database.update("DELETE FROM tokens WHERE token_id = ?", hashedId);
+
+        if (cache != null) {
+            revocations.incrementAndGet();
+            cache.invalidate(hashedId);
+        }
     }
 
-    private String hash(String tokenId) {
+    public long cacheHits() {
+        return cacheHits.sum();
+    }
+
+    public long cacheMisses() {
+        return cacheMisses.sum();
+    }
+
+    /**
+     * Number of tokens currently held in the read cache, to compare against the configured maximum when sizing it.
+     */
+    public long cacheSize() {
+        return cache == null ? 0 : cache.size();
+    }
+
+    /**
+     * Writes all queued tokens to the database. Called on the size and time triggers, and can be called directly,
+     * e.g. before shutdown, to close the durability window.
+     */
+    public void flush() {
+        flushScheduled.set(false);
+        synchronized (flushLock) {
+            while (!pending.isEmpty()) {
+                var hashedIds = new ArrayList<String>(batchSize);
+                var rows = new ArrayList<List<?>>(batchSize);
+                for (var entry : pending.entrySet()) {
+                    var queued = entry.getValue();
+                    hashedIds.add(entry.getKey());
+                    rows.add(List.of(entry.getKey(), queued.username, queued.expiry, queued.attributes));
+                    if (rows.size() == batchSize) break;
+                }
+
+                try {
+                    database.withVoidTransaction(tx -> database.updateBatch(INSERT_TOKEN, rows));
+                } catch (RuntimeException e) {
+                    //one bad row fails the whole batch, so that the others aren't held back by it they are
+                    // inserted one at a time
+                    logger.warn("Failed to flush {} pending tokens as a batch, inserting them one by one",
+                            rows.size(), e);
+                    try {
+                        rows.forEach(this::insertQuietly);
+                    } catch (RuntimeException unavailable) {
+                        //the database itself is failing, keep the tokens queued and let the next trigger retry
+                        logger.error("Failed to flush {} pending tokens", rows.size(), unavailable);
+                        return;
+                    }
+                }
+
+                //only drop the tokens from memory once they are readable from the database
+                hashedIds.forEach(pending::remove);
+                logger.debug("Flushed {} pending tokens", rows.size());
+            }
+        }
+    }
+
+    //inserts a token that failed as part of a batch, a token that still can't be inserted is dropped
+    private void insertQuietly(List<?> row) {
+        try {
+            database.update(INSERT_TOKEN, row.toArray());
+        } catch (RuntimeException e) {
+            var inserted = database.findOptional(Integer.class,
+                    "SELECT 1 FROM tokens WHERE token_id = ?", row.get(0)).isPresent();
+            if (!inserted) {
+                logger.error("Dropped a token of {} that can't be inserted", row.get(1), e);
+            }
+        }
+    }
+
+    private static String hash(String tokenId) {
         var hash = sha256(tokenId);
         return Base64url.encode(hash);
     }
@@ -67,17 +283,61 @@ public class DatabaseTokenStore implements TokenStore {
             throws SQLException {
         var username = resultSet.getString(1);
         var expiry = resultSet.getTimestamp(2).toInstant();
-        var json = new JSONObject(resultSet.getString(3));
+        return toToken(username, expiry, resultSet.getString(3));
+    }
 
-        var token = new Token(expiry, username);
+    private static Token toToken(String username, Instant expiry, String attributes) {
+        var json = new JSONObject(attributes);
+
+        var attrs = TokenAttributes.builder(json.length());
         for (var key : json.keySet()) {
-            token.attributes.put(key, json.getString(key));
+            attrs.put(key, json.getString(key));
         }
-        return token;
+        return new Token(expiry, username, attrs.build());
+    }
+
+    /**
+     * Runs an expired token sweep and waits for it to finish. Sweeps also run in the background every 10 minutes.
+     */
+    public ExpiredTokenSweeper.Sweep deleteExpiredTokens() {
+        return sweep().join();
+    }
+
+    CompletableFuture<ExpiredTokenSweeper.Sweep> sweep() {
+        return sweeper.sweep().whenComplete((sweep, e) -> evictExpiredFromCache());
+    }
+
+    //for a ShardedTokenStore, which sweeps all of its shards at once on a scheduler of its own
+    void sweepOn(ScheduledExecutorService sweepScheduler) {
+        scheduledSweeps.cancel(false);
+        sweeper = new ExpiredTokenSweeper(database, sweepScheduler);
     }
 
-    public void deleteExpiredTokens() {
-        var deleted = database.update("DELETE FROM tokens WHERE expiry < current_timestamp");
-        logger.info("Deleted {} expired tokens", deleted);
+    //an exception escaping a periodic task would silently cancel all later sweeps
+    private void scheduledSweep() {
+        try {
+            sweep();
+        } catch (RuntimeException e) {
+            logger.error("Failed to start an expired token sweep", e);
+        }
+    }
+
+    private void evictExpiredFromCache() {
+        if (cache != null) {
+            cache.asMap().values().removeIf(TokenSnapshot::isExpired);
+            logger.info("Token cache: {} hits, {} misses, {} entries", cacheHits(), cacheMisses(), cache.size());
+        }
+    }
+
+    private static class PendingToken {
+        private final String username;
+        private final Instant expiry;
+        private final String attributes;
+
+        private PendingToken(String username, Instant expiry, String attributes) {
+            this.username = username;
+            this.expiry = expiry;
+            this.attributes = attributes;
+        }
     }
 }
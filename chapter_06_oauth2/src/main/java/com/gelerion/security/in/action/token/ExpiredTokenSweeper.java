@@ -0,0 +1,155 @@
+package com.gelerion.security.in.action.token;
+
+import org.dalesbred.Database;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Deletes expired tokens in small chunks instead of one {@code DELETE ... WHERE expiry < current_timestamp}, which
+ * locks the tokens table for as long as it takes to remove millions of rows.
+ * <p>
+ * A sweep walks the {@code expired_token_idx} index in time buckets, from the oldest expiry up to the moment the sweep
+ * started, and deletes at most {@code chunkSize} rows per statement. The chunk size adapts to how long the last chunk
+ * took, and the sweeper pauses for as long as a chunk took before starting the next one, so it never uses more than
+ * half of the database's time and backs off by itself when the database is busy.
+ */
+public class ExpiredTokenSweeper {
+    private static final Logger logger = LoggerFactory.getLogger(ExpiredTokenSweeper.class);
+
+    private static final int MIN_CHUNK_SIZE = 100;
+    private static final int MAX_CHUNK_SIZE = 10_000;
+    private static final Duration TARGET_CHUNK_TIME = Duration.ofMillis(50);
+    private static final Duration BUCKET = Duration.ofMinutes(1);
+
+    private final Database database;
+    private final ScheduledExecutorService scheduler;
+    private final AtomicReference<CompletableFuture<Sweep>> running = new AtomicReference<>();
+    private volatile int chunkSize = 1_000;
+    private volatile Sweep lastSweep;
+
+    public ExpiredTokenSweeper(Database database, ScheduledExecutorService scheduler) {
+        this.database = database;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Starts a sweep on the scheduler, or returns the sweep that is already running.
+     */
+    public CompletableFuture<Sweep> sweep() {
+        var result = new CompletableFuture<Sweep>();
+        if (!running.compareAndSet(null, result)) {
+            var current = running.get();
+            if (current != null) {
+                return current;
+            }
+            return sweep();
+        }
+
+        //registered before the sweep starts, so that however it ends the next one isn't blocked
+        var done = result.whenComplete((sweep, e) -> running.compareAndSet(result, null));
+        try {
+            scheduler.execute(() -> start(result));
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(e);
+        }
+        return done;
+    }
+
+    public Sweep lastSweep() {
+        return lastSweep;
+    }
+
+    private void start(CompletableFuture<Sweep> result) {
+        try {
+            var cutoff = Instant.now();
+            var oldest = database.findUniqueOrNull(Instant.class, "SELECT MIN(expiry) FROM tokens");
+            deleteChunk(new SweepState(cutoff, oldest == null || oldest.isAfter(cutoff) ? cutoff : oldest), result);
+        } catch (RuntimeException e) {
+            logger.error("Expired token sweep failed to start", e);
+            result.completeExceptionally(e);
+        }
+    }
+
+    private void deleteChunk(SweepState state, CompletableFuture<Sweep> result) {
+        try {
+            if (!state.from.isBefore(state.cutoff)) {
+                var sweep = new Sweep(state.deleted, state.chunks, Duration.between(state.cutoff, Instant.now()));
+                lastSweep = sweep;
+                logger.info("Deleted {} expired tokens in {} ms ({} chunks)",
+                        sweep.deleted, sweep.duration.toMillis(), sweep.chunks);
+                result.complete(sweep);
+                return;
+            }
+
+            var to = state.from.plus(BUCKET);
+            if (to.isAfter(state.cutoff)) {
+                to = state.cutoff;
+            }
+
+            var size = chunkSize;
+            var start = System.nanoTime();
+            var deleted = database.update("DELETE FROM tokens WHERE expiry >= ? AND expiry < ? " +
+                    "FETCH FIRST ? ROWS ONLY", state.from, to, size);
+            var elapsed = Duration.ofNanos(System.nanoTime() - start);
+
+            state.deleted += deleted;
+            state.chunks++;
+            //move on once this bucket is empty, skipping over buckets without any tokens
+            if (deleted < size) {
+                state.from = oldestExpiry(to, state.cutoff);
+            }
+            adaptChunkSize(elapsed);
+
+            scheduler.schedule(() -> deleteChunk(state, result), elapsed.toNanos(), TimeUnit.NANOSECONDS);
+        } catch (RuntimeException e) {
+            logger.error("Expired token sweep failed after {} tokens", state.deleted, e);
+            result.completeExceptionally(e);
+        }
+    }
+
+    private Instant oldestExpiry(Instant from, Instant cutoff) {
+        var oldest = database.findUniqueOrNull(Instant.class,
+                "SELECT MIN(expiry) FROM tokens WHERE expiry >= ?", from);
+        return oldest == null || oldest.isAfter(cutoff) ? cutoff : oldest;
+    }
+
+    private void adaptChunkSize(Duration elapsed) {
+        if (elapsed.compareTo(TARGET_CHUNK_TIME) > 0) {
+            chunkSize = Math.max(MIN_CHUNK_SIZE, chunkSize / 2);
+        } else if (elapsed.compareTo(TARGET_CHUNK_TIME.dividedBy(2)) < 0) {
+            chunkSize = Math.min(MAX_CHUNK_SIZE, chunkSize * 2);
+        }
+    }
+
+    private static class SweepState {
+        private final Instant cutoff;
+        private Instant from;
+        private long deleted;
+        private int chunks;
+
+        private SweepState(Instant cutoff, Instant from) {
+            this.cutoff = cutoff;
+            this.from = from;
+        }
+    }
+
+    public static class Sweep {
+        public final long deleted;
+        public final int chunks;
+        public final Duration duration;
+
+        public Sweep(long deleted, int chunks, Duration duration) {
+            this.deleted = deleted;
+            this.chunks = chunks;
+            this.duration = duration;
+        }
+    }
+}
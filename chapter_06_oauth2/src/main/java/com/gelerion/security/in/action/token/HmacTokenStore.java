@@ -6,16 +6,21 @@ import javax.crypto.Mac;
 import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
 import java.security.Key;
-import java.security.MessageDigest;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 
 public class HmacTokenStore implements TokenStore {
     private final TokenStore delegate;
     private final Key macKey;
+    //[hmac] Mac.getInstance() and init() are expensive, so every thread keeps its own initialised Mac together with
+    // the buffers used to verify a tag. Verifying a token then doesn't allocate anything
+    private final ThreadLocal<Verifier> verifiers;
 
     public HmacTokenStore(TokenStore delegate, Key macKey) {
         this.delegate = delegate;
         this.macKey = macKey;
+        this.verifiers = ThreadLocal.withInitial(Verifier::new);
     }
 
     /*
@@ -25,21 +30,11 @@ public class HmacTokenStore implements TokenStore {
     @Override
     public String create(Request request, Token token) {
         var tokenId = delegate.create(request, token);
-        var tag = hmac(tokenId);
+        var tag = verifiers.get().mac.doFinal(tokenId.getBytes(StandardCharsets.UTF_8));
 
         return tokenId + '.' + Base64url.encode(tag);
     }
 
-    private byte[] hmac(String tokenId) {
-        try {
-            var mac = Mac.getInstance(macKey.getAlgorithm());
-            mac.init(macKey);
-            return mac.doFinal(tokenId.getBytes(StandardCharsets.UTF_8));
-        } catch (GeneralSecurityException e) {
-            throw new RuntimeException(e);
-        }
-    }
-
     /*
     When the client sends a request back to the API including the token, you can validate the authentication tag.
     If it is valid, then the tag is stripped off and the original token ID passed to the database token store.
@@ -51,34 +46,91 @@ public class HmacTokenStore implements TokenStore {
     @Override
     public Optional<Token> read(Request request, String tokenId) {
         var index = tokenId.lastIndexOf('.');
-        if (index == -1) {
+        if (index == -1 || !verifiers.get().verify(tokenId, index)) {
             return Optional.empty();
         }
-        var realTokenId = tokenId.substring(0, index);
 
-        var provided = Base64url.decode(tokenId.substring(index + 1));
-        var computed = hmac(realTokenId);
+        return delegate.read(request, tokenId.substring(0, index));
+    }
 
-        if (!MessageDigest.isEqual(provided, computed)) {
-            return Optional.empty();
+    @Override
+    public CompletionStage<Optional<Token>> readAsync(Request request, String tokenId) {
+        var index = tokenId.lastIndexOf('.');
+        if (index == -1 || !verifiers.get().verify(tokenId, index)) {
+            return CompletableFuture.completedFuture(Optional.empty());
         }
 
-        return delegate.read(request, realTokenId);
+        return delegate.readAsync(request, tokenId.substring(0, index));
     }
 
     @Override
     public void revoke(Request request, String tokenId) {
         var index = tokenId.lastIndexOf('.');
-        if (index == -1) return;
-        var realTokenId = tokenId.substring(0, index);
+        if (index == -1 || !verifiers.get().verify(tokenId, index)) {
+            return;
+        }
 
-        var provided = Base64url.decode(tokenId.substring(index + 1));
-        var computed = hmac(realTokenId);
+        delegate.revoke(request, tokenId.substring(0, index));
+    }
 
-        if (!MessageDigest.isEqual(provided, computed)) {
-            return;
+    /**
+     * Checks the tag after the '.' at {@code index} against the HMAC of everything before it, reading both straight
+     * from the token string instead of splitting and decoding it into new strings and arrays.
+     */
+    private class Verifier {
+        private final Mac mac;
+        private final byte[] message = new byte[256];
+        private final byte[] computed;
+        private final byte[] provided;
+
+        private Verifier() {
+            try {
+                this.mac = Mac.getInstance(macKey.getAlgorithm());
+                mac.init(macKey);
+            } catch (GeneralSecurityException e) {
+                throw new RuntimeException(e);
+            }
+            this.computed = new byte[mac.getMacLength()];
+            this.provided = new byte[mac.getMacLength()];
         }
 
-        delegate.revoke(request, realTokenId);
+        private boolean verify(String token, int index) {
+            //the tag length is fixed by the algorithm, so rejecting other lengths leaks nothing
+            if (token.length() - index - 1 != (provided.length * 8 + 5) / 6
+                    || Base64url.decode(token, index + 1, provided) != provided.length) {
+                return false;
+            }
+
+            try {
+                update(token, index);
+                mac.doFinal(computed, 0);
+            } catch (GeneralSecurityException e) {
+                throw new RuntimeException(e);
+            }
+
+            //constant time equals
+            var diff = 0;
+            for (int i = 0; i < computed.length; i++) {
+                diff |= computed[i] ^ provided[i];
+            }
+            return diff == 0;
+        }
+
+        //token IDs are Base64url, so their UTF-8 encoding is just the chars. Anything else takes the slow path
+        private void update(String token, int length) {
+            for (int start = 0; start < length; start += message.length) {
+                var end = Math.min(length, start + message.length);
+                for (int i = start; i < end; i++) {
+                    var c = token.charAt(i);
+                    if (c > 0x7F) {
+                        mac.reset();
+                        mac.update(token.substring(0, length).getBytes(StandardCharsets.UTF_8));
+                        return;
+                    }
+                    message[i - start] = (byte) c;
+                }
+                mac.update(message, 0, end - start);
+            }
+        }
     }
 }
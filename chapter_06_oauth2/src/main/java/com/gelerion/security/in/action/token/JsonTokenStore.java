@@ -31,12 +31,12 @@ public class JsonTokenStore implements TokenStore {
             var attrs = json.getJSONObject("attrs");
 
 
-            var token = new Token(expiry, username);
+            var attributes = TokenAttributes.builder(attrs.length());
             for (var key : attrs.keySet()) {
-                token.attributes.put(key, attrs.getString(key));
+                attributes.put(key, attrs.getString(key));
             }
 
-            return Optional.of(token);
+            return Optional.of(new Token(expiry, username, attributes.build()));
         } catch (JSONException e) {
             return Optional.empty();
         }
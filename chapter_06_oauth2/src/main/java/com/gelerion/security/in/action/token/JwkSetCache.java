@@ -0,0 +1,212 @@
+package com.gelerion.security.in.action.token;
+
+import com.google.common.util.concurrent.RateLimiter;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.KeyConverter;
+import com.nimbusds.jose.jwk.KeyType;
+import com.nimbusds.jose.jwk.KeyUse;
+import com.nimbusds.jose.proc.JWSKeySelector;
+import com.nimbusds.jose.proc.SecurityContext;
+import com.nimbusds.jose.util.ResourceRetriever;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.Key;
+import java.security.PrivateKey;
+import java.text.ParseException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.attribute.PosixFilePermission.*;
+
+/**
+ * Keeps the authorization server's JWK set in memory and selects the keys to verify a JWT with. The set is fetched
+ * again on a schedule in the background, so requests never wait for the AS, and if a fetch fails the last good set
+ * keeps being used. A token with a {@code kid} that isn't in the set, which is what happens after the AS rotates
+ * its keys, triggers an immediate fetch, but at most once per {@code minUnknownKeyInterval}, so a flood of tokens
+ * with made-up key IDs can't be turned into a flood of requests to the AS.
+ * <p>
+ * Every good set is also written to {@code file}. After a restart the keys are read back from there, and tokens can
+ * be verified even if the AS can't be reached yet. Anyone who can replace that file can plant keys of their own, so
+ * it is written readable by its owner only, and a file that is owned by another user or writable by others is
+ * ignored.
+ * <p>
+ * The JWKs are converted to Java keys once per fetch rather than once per token, and the same key objects are handed
+ * out until the set changes.
+ */
+public class JwkSetCache implements JWSKeySelector<SecurityContext>, AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(JwkSetCache.class);
+
+    private final URL jwkSetUrl;
+    private final ResourceRetriever retriever;
+    private final JWSAlgorithm signatureAlgorithm;
+    private final Path file;
+    private final RateLimiter unknownKeyFetches;
+    private final ScheduledFuture<?> refreshes;
+    private volatile Keys keys = new Keys(Map.of(), List.of());
+    private volatile String saved;
+
+    /**
+     * @param file where the key set is kept between restarts, in a directory only the API can write to, or null to
+     *             only keep it in memory.
+     */
+    public JwkSetCache(URL jwkSetUrl, ResourceRetriever retriever, JWSAlgorithm signatureAlgorithm, Path file,
+                       Duration refreshInterval, Duration minUnknownKeyInterval) {
+        this.jwkSetUrl = jwkSetUrl;
+        this.retriever = retriever;
+        this.signatureAlgorithm = signatureAlgorithm;
+        this.file = file;
+        this.unknownKeyFetches = RateLimiter.create(1000.0 / minUnknownKeyInterval.toMillis());
+
+        if (file != null && Files.exists(file, NOFOLLOW_LINKS)) {
+            try {
+                if (!isPrivate(file)) {
+                    throw new IOException("not a regular file owned by this user and writable by it alone");
+                }
+                saved = Files.readString(file, UTF_8);
+                keys = Keys.from(JWKSet.parse(saved), signatureAlgorithm);
+            } catch (IOException | ParseException e) {
+                logger.warn("Ignoring the JWK set in {}", file, e);
+            }
+        }
+
+        var millis = refreshInterval.toMillis();
+        this.refreshes = TokenStoreScheduler.shared()
+                .scheduleWithFixedDelay(this::refreshQuietly, 0, millis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the background refreshes. The keys that were already fetched stay in use.
+     */
+    @Override
+    public void close() {
+        refreshes.cancel(false);
+    }
+
+    @Override
+    public List<Key> selectJWSKeys(JWSHeader header, SecurityContext context) {
+        if (!signatureAlgorithm.equals(header.getAlgorithm())) {
+            return List.of();
+        }
+
+        var kid = header.getKeyID();
+        var selected = keys.select(kid);
+        if (selected.isEmpty() && kid != null && unknownKeyFetches.tryAcquire()) {
+            //the AS may have rotated its keys since the last refresh
+            refreshQuietly();
+            selected = keys.select(kid);
+        }
+        return selected;
+    }
+
+    /**
+     * Fetches the key set from the AS now. Throws if it can't be fetched or parsed, in which case the keys that were
+     * already known stay in use.
+     */
+    public void refresh() throws IOException, ParseException {
+        var jwkSet = JWKSet.parse(retriever.retrieveResource(jwkSetUrl).getContent());
+        keys = Keys.from(jwkSet, signatureAlgorithm);
+        save(jwkSet);
+    }
+
+    private void refreshQuietly() {
+        try {
+            refresh();
+        } catch (IOException | ParseException | RuntimeException e) {
+            logger.warn("Failed to refresh the JWK set from {}, keeping the last good one", jwkSetUrl, e);
+        }
+    }
+
+    private void save(JWKSet jwkSet) throws IOException {
+        var json = jwkSet.toString(true);
+        if (file == null || json.equals(saved)) {
+            return;
+        }
+
+        //write a temporary file and move it into place, so a crash never leaves a half written key set behind
+        var temp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.deleteIfExists(temp);
+        if (file.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            Files.createFile(temp, PosixFilePermissions.asFileAttribute(EnumSet.of(OWNER_READ, OWNER_WRITE)));
+        } else {
+            Files.createFile(temp);
+        }
+        Files.writeString(temp, json, UTF_8);
+        Files.move(temp, file, ATOMIC_MOVE, REPLACE_EXISTING);
+        saved = json;
+    }
+
+    private static boolean isPrivate(Path file) throws IOException {
+        if (!Files.isRegularFile(file, NOFOLLOW_LINKS)) {
+            return false;
+        }
+        var us = file.getFileSystem().getUserPrincipalLookupService()
+                .lookupPrincipalByName(System.getProperty("user.name"));
+        if (!us.equals(Files.getOwner(file, NOFOLLOW_LINKS))) {
+            return false;
+        }
+        var posix = Files.getFileAttributeView(file, PosixFileAttributeView.class, NOFOLLOW_LINKS);
+        if (posix == null) {
+            return true;
+        }
+        var permissions = posix.readAttributes().permissions();
+        return !permissions.contains(GROUP_WRITE) && !permissions.contains(OTHERS_WRITE);
+    }
+
+    private static class Keys {
+        private final Map<String, List<Key>> byKeyId;
+        private final List<Key> all;
+
+        private Keys(Map<String, List<Key>> byKeyId, List<Key> all) {
+            this.byKeyId = byKeyId;
+            this.all = all;
+        }
+
+        //only public signature keys of the right type are kept, the same rules JWSVerificationKeySelector applies
+        private static Keys from(JWKSet jwkSet, JWSAlgorithm algorithm) {
+            var keyType = KeyType.forAlgorithm(algorithm);
+            var byKeyId = new HashMap<String, List<Key>>();
+            var all = new ArrayList<Key>();
+            for (var jwk : jwkSet.getKeys()) {
+                if (!keyType.equals(jwk.getKeyType())
+                        || (jwk.getKeyUse() != null && !KeyUse.SIGNATURE.equals(jwk.getKeyUse()))
+                        || (jwk.getAlgorithm() != null && !algorithm.equals(jwk.getAlgorithm()))) {
+                    continue;
+                }
+
+                for (var key : KeyConverter.toJavaKeys(List.of(jwk))) {
+                    if (key instanceof PrivateKey) {
+                        continue;
+                    }
+                    all.add(key);
+                    if (jwk.getKeyID() != null) {
+                        byKeyId.computeIfAbsent(jwk.getKeyID(), kid -> new ArrayList<>()).add(key);
+                    }
+                }
+            }
+            return new Keys(byKeyId, all);
+        }
+
+        private List<Key> select(String kid) {
+            return kid == null ? all : byKeyId.getOrDefault(kid, List.of());
+        }
+    }
+}
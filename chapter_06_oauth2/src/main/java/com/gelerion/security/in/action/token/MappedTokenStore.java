@@ -0,0 +1,379 @@
+package com.gelerion.security.in.action.token;
+
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import spark.Request;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static com.gelerion.security.in.action.token.CookieTokenStore.sha256;
+import static java.nio.channels.FileChannel.MapMode.READ_WRITE;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Keeps token records in an open-addressing hash table that lives in a memory-mapped file rather than on the Java
+ * heap. Like the {@link DatabaseTokenStore} only the SHA-256 hash of the token ID is stored, so somebody who can
+ * read the file still can't use the tokens in it. Because the table is a file it survives a restart, but reading a
+ * token is a few memory accesses instead of a database round trip, and millions of live sessions don't add to GC
+ * pressure.
+ * <p>
+ * Every slot has a fixed size and holds the state, the 32-byte key, the expiry and the username and attributes:
+ * <pre>
+ * | state (1) | sha-256(token id) (32) | expiry millis (8) | username length (2) | attributes length (2) | payload |
+ * </pre>
+ * The expiry is stored inline so that a read can reject an expired token before anything is copied onto the heap.
+ * Expired slots are reused by later inserts. Collisions are resolved with linear probing, and a revoked slot is
+ * marked as removed rather than emptied so that probe chains running through it stay intact. A removed slot that
+ * ends a chain isn't needed by any chain, so it is emptied again, along with any removed slots right before it.
+ * A token is never stored more than {@value #MAX_PROBE} slots from where its hash points, so looking up an unknown
+ * token never scans more than that, however much the table has churned.
+ */
+public class MappedTokenStore implements TokenStore, AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(MappedTokenStore.class);
+
+    private static final int MAGIC = 0x4e544b53; // "NTKS"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int SLOT_SIZE = 256;
+    //a single mapping is limited to 2GiB, so large tables are split into several segments
+    private static final int SLOTS_PER_SEGMENT = Integer.MAX_VALUE / SLOT_SIZE;
+
+    private static final byte EMPTY = 0;
+    private static final byte USED = 1;
+    private static final byte REMOVED = 2;
+
+    private static final int MAX_PROBE = 512;
+    //slots checked by the expired token sweep per hold of the write lock
+    private static final int SWEEP_CHUNK = 4096;
+
+    private static final int STATE = 0;
+    private static final int KEY = 1;
+    private static final int KEY_SIZE = 32;
+    private static final int EXPIRY = KEY + KEY_SIZE;
+    private static final int USERNAME_LENGTH = EXPIRY + 8;
+    private static final int ATTRIBUTES_LENGTH = USERNAME_LENGTH + 2;
+    private static final int PAYLOAD = ATTRIBUTES_LENGTH + 2;
+    private static final int MAX_PAYLOAD = SLOT_SIZE - PAYLOAD;
+
+    private final int capacity;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final SecureRandom secureRandom = new SecureRandom();
+    private final ScheduledFuture<?> scheduledSweeps;
+    //null once the store is closed
+    private volatile MappedByteBuffer[] segments;
+
+    /**
+     * Opens the table stored in {@code file}, or creates it with room for {@code capacity} tokens. An existing file
+     * must have been created with the same capacity.
+     */
+    public MappedTokenStore(Path file, int capacity) {
+        this.capacity = capacity;
+        var segments = new MappedByteBuffer[(capacity + SLOTS_PER_SEGMENT - 1) / SLOTS_PER_SEGMENT];
+
+        try (var channel = FileChannel.open(file, CREATE, READ, WRITE)) {
+            var existing = channel.size() > 0;
+            var header = channel.map(READ_WRITE, 0, HEADER_SIZE);
+            if (existing) {
+                checkHeader(header, file);
+            }
+
+            for (int i = 0; i < segments.length; i++) {
+                var slots = Math.min(SLOTS_PER_SEGMENT, capacity - i * SLOTS_PER_SEGMENT);
+                var position = HEADER_SIZE + (long) i * SLOTS_PER_SEGMENT * SLOT_SIZE;
+                segments[i] = channel.map(READ_WRITE, position, (long) slots * SLOT_SIZE);
+            }
+
+            //the header is written last, a file without one is never mistaken for a valid table
+            if (!existing) {
+                header.putInt(0, MAGIC).putInt(4, VERSION).putInt(8, SLOT_SIZE).putInt(12, capacity);
+                header.force();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        this.segments = segments;
+
+        this.scheduledSweeps = TokenStoreScheduler.shared()
+                .scheduleWithFixedDelay(this::scheduledSweep, 10, 10, TimeUnit.MINUTES);
+    }
+
+    private void checkHeader(ByteBuffer header, Path file) {
+        if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+            throw new IllegalStateException(file + " is not a token table");
+        }
+        if (header.getInt(8) != SLOT_SIZE || header.getInt(12) != capacity) {
+            throw new IllegalStateException(file + " was created with a capacity of " + header.getInt(12));
+        }
+    }
+
+    private String randomId() {
+        //[tokens] we'll use 160-bit token IDs
+        var bytes = new byte[20];
+        secureRandom.nextBytes(bytes);
+        return Base64url.encode(bytes);
+    }
+
+    @Override
+    public String create(Request request, Token token) {
+        var tokenId = randomId();
+        var key = sha256(tokenId);
+        var username = token.username.getBytes(UTF_8);
+        var attrs = new JSONObject(token.attributes).toString().getBytes(UTF_8);
+        if (username.length + attrs.length > MAX_PAYLOAD) {
+            throw new IllegalArgumentException("token attributes too long");
+        }
+
+        lock.writeLock().lock();
+        try {
+            checkOpen();
+            var slot = findFree(key);
+            var segment = segment(slot);
+            var offset = offset(slot);
+
+            put(segment, offset + KEY, key);
+            segment.putLong(offset + EXPIRY, token.expiry.toEpochMilli());
+            segment.putShort(offset + USERNAME_LENGTH, (short) username.length);
+            segment.putShort(offset + ATTRIBUTES_LENGTH, (short) attrs.length);
+            put(segment, offset + PAYLOAD, username);
+            put(segment, offset + PAYLOAD + username.length, attrs);
+            segment.put(offset + STATE, USED);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return tokenId;
+    }
+
+    @Override
+    public Optional<Token> read(Request request, String tokenId) {
+        var key = sha256(tokenId);
+
+        lock.readLock().lock();
+        try {
+            checkOpen();
+            var slot = find(key);
+            if (slot == -1) {
+                return Optional.empty();
+            }
+
+            var segment = segment(slot);
+            var offset = offset(slot);
+            var expiry = segment.getLong(offset + EXPIRY);
+            if (expiry <= System.currentTimeMillis()) {
+                return Optional.empty();
+            }
+
+            var username = get(segment, offset + PAYLOAD, segment.getShort(offset + USERNAME_LENGTH));
+            var attrs = get(segment, offset + PAYLOAD + username.length, segment.getShort(offset + ATTRIBUTES_LENGTH));
+
+            var json = new JSONObject(new String(attrs, UTF_8));
+            var attributes = TokenAttributes.builder(json.length());
+            for (var attr : json.keySet()) {
+                attributes.put(attr, json.getString(attr));
+            }
+            return Optional.of(new Token(Instant.ofEpochMilli(expiry), new String(username, UTF_8), attributes.build()));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void revoke(Request request, String tokenId) {
+        var key = sha256(tokenId);
+
+        lock.writeLock().lock();
+        try {
+            checkOpen();
+            var slot = find(key);
+            if (slot != -1) {
+                remove(slot);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes expired tokens. Inserts reuse expired slots anyway, this keeps probe chains short and the file free of
+     * stale sessions. Runs every 10 minutes, and also writes the table back to disk. The table is swept a chunk at a
+     * time, releasing the lock in between, so that requests don't wait for the whole sweep.
+     */
+    public void deleteExpiredTokens() {
+        var deleted = 0;
+        var now = System.currentTimeMillis();
+
+        for (int start = 0; start < capacity; start += SWEEP_CHUNK) {
+            var end = Math.min(capacity, start + SWEEP_CHUNK);
+            lock.writeLock().lock();
+            try {
+                checkOpen();
+                for (int slot = start; slot < end; slot++) {
+                    var segment = segment(slot);
+                    var offset = offset(slot);
+                    if (segment.get(offset + STATE) == USED && segment.getLong(offset + EXPIRY) <= now) {
+                        remove(slot);
+                        deleted++;
+                    }
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        force();
+        logger.info("Deleted {} expired tokens", deleted);
+    }
+
+    //an exception escaping a periodic task would silently cancel all later sweeps
+    private void scheduledSweep() {
+        try {
+            deleteExpiredTokens();
+        } catch (RuntimeException e) {
+            logger.error("Expired token sweep failed", e);
+        }
+    }
+
+    /**
+     * Writes changes back to the file. The OS does this on its own, so this only matters if the machine, rather than
+     * the process, can crash.
+     */
+    public void force() {
+        var mapped = segments;
+        if (mapped == null) {
+            throw new IllegalStateException("token store is closed");
+        }
+        for (var segment : mapped) {
+            segment.force();
+        }
+    }
+
+    /**
+     * Stops the background sweeps, writes the table back to the file and drops the mappings. Java has no way to unmap
+     * a file explicitly, the mappings, and with them the file, are released once the buffers are garbage collected.
+     */
+    @Override
+    public void close() {
+        scheduledSweeps.cancel(false);
+        lock.writeLock().lock();
+        try {
+            if (segments != null) {
+                force();
+                segments = null;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    //called with the lock held
+    private void checkOpen() {
+        if (segments == null) {
+            throw new IllegalStateException("token store is closed");
+        }
+    }
+
+    private int find(byte[] key) {
+        var slot = index(key);
+        for (int i = 0; i < maxProbe(); i++) {
+            var segment = segment(slot);
+            var offset = offset(slot);
+            var state = segment.get(offset + STATE);
+            if (state == EMPTY) {
+                return -1;
+            }
+            if (state == USED && keyEquals(segment, offset, key)) {
+                return slot;
+            }
+            slot = next(slot);
+        }
+        return -1;
+    }
+
+    private int findFree(byte[] key) {
+        var now = System.currentTimeMillis();
+        var slot = index(key);
+        for (int i = 0; i < maxProbe(); i++) {
+            var segment = segment(slot);
+            var offset = offset(slot);
+            if (segment.get(offset + STATE) != USED || segment.getLong(offset + EXPIRY) <= now) {
+                return slot;
+            }
+            slot = next(slot);
+        }
+        throw new IllegalStateException("token store is full");
+    }
+
+    //called with the write lock held
+    private void remove(int slot) {
+        segment(slot).put(offset(slot) + STATE, REMOVED);
+        if (state(next(slot)) != EMPTY) {
+            return;
+        }
+        //nothing is stored past an empty slot on behalf of the removed slots right before it
+        for (int i = 0; i < capacity && state(slot) == REMOVED; i++) {
+            segment(slot).put(offset(slot) + STATE, EMPTY);
+            slot = previous(slot);
+        }
+    }
+
+    private byte state(int slot) {
+        return segment(slot).get(offset(slot) + STATE);
+    }
+
+    private int maxProbe() {
+        return Math.min(capacity, MAX_PROBE);
+    }
+
+    //SHA-256 output is uniformly distributed, so its first bytes are as good a hash code as any
+    private int index(byte[] key) {
+        var hash = ((long) (key[0] & 0x7f) << 24) | ((key[1] & 0xff) << 16) | ((key[2] & 0xff) << 8) | (key[3] & 0xff);
+        return (int) (hash % capacity);
+    }
+
+    private int next(int slot) {
+        return slot + 1 == capacity ? 0 : slot + 1;
+    }
+
+    private int previous(int slot) {
+        return slot == 0 ? capacity - 1 : slot - 1;
+    }
+
+    private MappedByteBuffer segment(int slot) {
+        return segments[slot / SLOTS_PER_SEGMENT];
+    }
+
+    private static int offset(int slot) {
+        return (slot % SLOTS_PER_SEGMENT) * SLOT_SIZE;
+    }
+
+    private static boolean keyEquals(ByteBuffer segment, int offset, byte[] key) {
+        for (int i = 0; i < KEY_SIZE; i++) {
+            if (segment.get(offset + KEY + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void put(ByteBuffer segment, int offset, byte[] bytes) {
+        segment.duplicate().position(offset).put(bytes);
+    }
+
+    private static byte[] get(ByteBuffer segment, int offset, int length) {
+        var bytes = new byte[length];
+        segment.duplicate().position(offset).get(bytes);
+        return bytes;
+    }
+}
@@ -9,21 +9,41 @@ import java.net.http.HttpRequest.BodyPublishers;
 import java.net.http.HttpResponse.BodyHandlers;
 import java.security.*;
 import java.security.cert.*;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.net.ssl.*;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import org.json.JSONObject;
 
 import spark.Request;
 
+import static com.gelerion.security.in.action.token.CookieTokenStore.sha256;
+import static com.gelerion.security.in.action.validation.Validators.isAccessToken;
+
 public class OAuth2TokenStore implements TokenStore {
 
     private final URI introspectionEndpoint;
     private final String authorization;
     private final HttpClient httpClient;
 
+    //[introspection cache] results keyed by the hashed token, so the cache never holds a usable access token
+    private final Cache<String, Introspection> cache;
+    private final Duration maxCacheTtl;
+    private final Duration negativeCacheTtl;
+    private final boolean refreshAhead;
+    private final Set<String> refreshing = ConcurrentHashMap.newKeySet();
+    //[single-flight] concurrent reads of the same token share one introspection call
+    private final SingleFlight<String, Introspection> introspections = new SingleFlight<>();
+    //[introspection cache] tokens revoked through this store, which an introspection or refresh that was already in
+    // flight must not put back into the cache. Kept as long as a cached result could live.
+    private final Cache<String, Boolean> revoked;
+
     /*
     var clientId = "testClient";
     var clientSecret = "60ho9IS3d6/A+Zzvdn9Y4laiGnI/1TddTM95lEHjArw=";
@@ -32,11 +52,45 @@ public class OAuth2TokenStore implements TokenStore {
     var tokenController = new TokenController(tokenStore);
      */
     public OAuth2TokenStore(URI introspectionEndpoint, String clientId, String clientSecret) {
+        this(introspectionEndpoint, clientId, clientSecret, createHttpClient(),
+                Duration.ZERO, Duration.ZERO, false);
+    }
+
+    /**
+     * Caches introspection results so that a token presented again doesn't cost another round trip to the AS,
+     * and the API keeps working through short AS outages.
+     * <p>
+     * An active token is cached until its {@code exp}, but never for longer than {@code maxCacheTtl}, which bounds
+     * how long a token revoked at the AS is still accepted. Inactive tokens are cached for {@code negativeCacheTtl},
+     * so a client retrying with a dead token doesn't hammer the AS. With {@code refreshAhead}, a hit on an entry that
+     * is past three quarters of its TTL re-introspects the token in the background, so busy tokens never expire out
+     * of the cache. A {@code maxCacheTtl} of zero disables caching.
+     * <p>
+     * The {@code httpClient} is used as is, which also allows pointing the store at a local stub AS over plain HTTP.
+     */
+    public OAuth2TokenStore(URI introspectionEndpoint, String clientId, String clientSecret, HttpClient httpClient,
+                            Duration maxCacheTtl, Duration negativeCacheTtl, boolean refreshAhead) {
         this.introspectionEndpoint = introspectionEndpoint;
 
         var credentials = URLEncoder.encode(clientId, UTF_8) + ":" + URLEncoder.encode(clientSecret, UTF_8);
         this.authorization = "Basic " + Base64.getEncoder().encodeToString(credentials.getBytes(UTF_8));
+        this.httpClient = httpClient;
 
+        this.maxCacheTtl = maxCacheTtl;
+        this.negativeCacheTtl = negativeCacheTtl;
+        this.refreshAhead = refreshAhead;
+        this.cache = maxCacheTtl.isZero() ? null : CacheBuilder.newBuilder()
+                .maximumSize(100_000)
+                .expireAfterWrite(maxCacheTtl.compareTo(negativeCacheTtl) > 0 ? maxCacheTtl : negativeCacheTtl)
+                .recordStats()
+                .build();
+        this.revoked = cache == null ? null : CacheBuilder.newBuilder()
+                .maximumSize(100_000)
+                .expireAfterWrite(maxCacheTtl)
+                .build();
+    }
+
+    private static HttpClient createHttpClient() {
         var sslParams = new SSLParameters();
         sslParams.setProtocols(new String[] { "TLSv1.3", "TLSv1.2" });
         sslParams.setCipherSuites(new String[] {
@@ -80,7 +134,7 @@ public class OAuth2TokenStore implements TokenStore {
             var sslContext = SSLContext.getInstance("TLS");
             sslContext.init(null, tmf.getTrustManagers(), null);
 
-            this.httpClient = HttpClient.newBuilder()
+            return HttpClient.newBuilder()
                     .sslParameters(sslParams)
                     .sslContext(sslContext)
                     .build();
@@ -99,43 +153,123 @@ public class OAuth2TokenStore implements TokenStore {
     public Optional<Token> read(Request request, String tokenId) {
         // Because the token is untrusted before the call, you should first validate it to ensure that it conforms
         // to the allowed syntax for access tokens
-        if (!tokenId.matches("[\\x20-\\x7E]{1,1024}")) {
+        if (!isAccessToken(tokenId)) {
             return Optional.empty();
         }
 
+        var key = Base64url.encode(sha256(tokenId));
+        if (cache != null) {
+            var now = Instant.now();
+            var cached = cache.getIfPresent(key);
+            if (cached != null && now.isBefore(cached.expiresAt)) {
+                if (refreshAhead && now.isAfter(cached.refreshAt) && refreshing.add(key)) {
+                    refresh(key, tokenId);
+                }
+                return cached.token();
+            }
+        }
+
+        return introspections.run(key, () -> {
+            var introspection = introspect(tokenId);
+            //cache before the call completes, so that nobody arriving later makes a call of their own
+            cache(key, introspection);
+            return introspection;
+        }).token();
+    }
+
+    //[async] HttpClient.sendAsync doesn't hold a thread while waiting for the AS
+    @Override
+    public CompletableFuture<Optional<Token>> readAsync(Request request, String tokenId) {
+        if (!isAccessToken(tokenId)) {
+            return CompletableFuture.completedFuture(Optional.empty());
+        }
+
+        var key = Base64url.encode(sha256(tokenId));
+        if (cache != null) {
+            var now = Instant.now();
+            var cached = cache.getIfPresent(key);
+            if (cached != null && now.isBefore(cached.expiresAt)) {
+                if (refreshAhead && now.isAfter(cached.refreshAt) && refreshing.add(key)) {
+                    refresh(key, tokenId);
+                }
+                return CompletableFuture.completedFuture(cached.token());
+            }
+        }
+
+        return introspections.runAsync(key, () ->
+                httpClient.sendAsync(introspectionRequest(tokenId), BodyHandlers.ofString())
+                        .thenApply(httpResponse -> {
+                            var introspection = processResponse(httpResponse, Instant.now());
+                            cache(key, introspection);
+                            return introspection;
+                        }))
+                .thenApply(Introspection::token);
+    }
+
+    private HttpRequest introspectionRequest(String tokenId) {
         //The token should then be URL-encoded to include in the POST body as the token parameter
         var form = "token=" + URLEncoder.encode(tokenId, UTF_8) +
                 "&token_type_hint=access_token";
 
-        var httpRequest = HttpRequest.newBuilder()
+        return HttpRequest.newBuilder()
                 .uri(introspectionEndpoint)
                 .header("Content-Type",
                         "application/x-www-form-urlencoded")
                 .header("Authorization", authorization)
                 .POST(BodyPublishers.ofString(form))
                 .build();
+    }
 
+    private Introspection introspect(String tokenId) {
         try {
-            var httpResponse = httpClient.send(httpRequest, BodyHandlers.ofString());
-
-            if (httpResponse.statusCode() == 200) {
-                var json = new JSONObject(httpResponse.body());
-
-                if (json.getBoolean("active")) {
-                    return processResponse(json);
-                }
-            }
+            var httpResponse = httpClient.send(introspectionRequest(tokenId), BodyHandlers.ofString());
+            return processResponse(httpResponse, Instant.now());
         } catch (IOException e) {
             throw new RuntimeException(e);
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
             throw new RuntimeException(e);
         }
+    }
+
+    //[introspection cache] the request thread keeps using the cached result while the refresh is in flight
+    private void refresh(String key, String tokenId) {
+        httpClient.sendAsync(introspectionRequest(tokenId), BodyHandlers.ofString())
+                .thenAccept(httpResponse -> cache(key, processResponse(httpResponse, Instant.now())))
+                .whenComplete((ignored, e) -> refreshing.remove(key));
+    }
 
-        return Optional.empty();
+    private void cache(String key, Introspection introspection) {
+        if (cache == null || !introspection.isCacheable() || revoked.getIfPresent(key) != null) {
+            return;
+        }
+        cache.put(key, introspection);
+        //revoke() may have run between the check and the put, and then its invalidate may have come too early
+        if (revoked.getIfPresent(key) != null) {
+            cache.invalidate(key);
+        }
     }
 
-    private Optional<Token> processResponse(JSONObject response) {
+    private Introspection processResponse(HttpResponse<String> httpResponse, Instant now) {
+        //an error from the AS says nothing about the token, so it isn't cached
+        if (httpResponse.statusCode() != 200) {
+            return new Introspection(null, now, now);
+        }
+
+        var json = new JSONObject(httpResponse.body());
+        if (!json.getBoolean("active")) {
+            return new Introspection(null, now.plus(negativeCacheTtl), now.plus(negativeCacheTtl));
+        }
+
+        var token = processResponse(json);
+        var ttl = Duration.between(now, token.expiry);
+        if (ttl.compareTo(maxCacheTtl) > 0) {
+            ttl = maxCacheTtl;
+        }
+        return new Introspection(new TokenSnapshot(token), now.plus(ttl), now.plus(ttl.multipliedBy(3).dividedBy(4)));
+    }
+
+    private Token processResponse(JSONObject response) {
         /*
         Token introspection response fields
         scope: The scope of the token as a string. If multiple scopes are specified then they are separated by spaces, such as "read_messages post_message"
@@ -147,12 +281,24 @@ public class OAuth2TokenStore implements TokenStore {
         var expiry = Instant.ofEpochSecond(response.getLong("exp"));
         var subject = response.getString("sub");
 
-        var token = new Token(expiry, subject);
+        var attributes = TokenAttributes.builder(2)
+                .put("scope", response.getString("scope"))
+                .put("client_id", response.optString("client_id"))
+                .build();
 
-        token.attributes.put("scope", response.getString("scope"));
-        token.attributes.put("client_id", response.optString("client_id"));
+        return new Token(expiry, subject, attributes);
+    }
 
-        return Optional.of(token);
+    public double cacheHitRate() {
+        return cache == null ? 0 : cache.stats().hitRate();
+    }
+
+    public long introspectionCalls() {
+        return introspections.calls();
+    }
+
+    public long coalescedIntrospections() {
+        return introspections.coalesced();
     }
 
 
@@ -165,6 +311,14 @@ public class OAuth2TokenStore implements TokenStore {
         var form = "token=" + URLEncoder.encode(tokenId, UTF_8) +
                 "&token_type_hint=access_token";
 
+        //[introspection cache] marked before the AS is called, an introspection or refresh that completes after this
+        // point doesn't cache the token, even if the AS still reported it as active
+        if (cache != null) {
+            var key = Base64url.encode(sha256(tokenId));
+            revoked.put(key, Boolean.TRUE);
+            cache.invalidate(key);
+        }
+
         var httpRequest = HttpRequest.newBuilder()
                 .uri(revocationEndpoint)
                 .header("Content-Type",
@@ -178,4 +332,25 @@ public class OAuth2TokenStore implements TokenStore {
             throw new RuntimeException(e);
         }
     }
+
+    private static class Introspection {
+        //null if the token isn't active
+        private final TokenSnapshot token;
+        private final Instant expiresAt;
+        private final Instant refreshAt;
+
+        private Introspection(TokenSnapshot token, Instant expiresAt, Instant refreshAt) {
+            this.token = token;
+            this.expiresAt = expiresAt;
+            this.refreshAt = refreshAt;
+        }
+
+        private boolean isCacheable() {
+            return expiresAt.isAfter(Instant.now());
+        }
+
+        private Optional<Token> token() {
+            return token == null ? Optional.empty() : Optional.of(token.toToken());
+        }
+    }
 }
@@ -0,0 +1,152 @@
+package com.gelerion.security.in.action.token;
+
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Self-contained tokens can't be deleted, so to revoke one you have to remember its ID ({@code jti}) until it
+ * expires and reject it whenever it's presented again. Almost every token that is presented has not been revoked,
+ * so the revoked IDs are kept in a Bloom filter that answers "definitely not revoked" without allocating anything or
+ * touching a database. Only on a hit is the exact set of revoked IDs consulted.
+ * <p>
+ * A revoked ID only needs to be remembered until its token expires, so the filter is rotated once per token
+ * lifetime: a fresh filter becomes the current one, the old one is kept for one more window, and the one before that
+ * is dropped. Memory therefore stays bounded by the number of revocations per window, rather than growing forever.
+ * IDs of tokens that outlive two windows are copied into the fresh filter, so they are never forgotten early.
+ */
+public class RevocationList implements AutoCloseable {
+    //the filter is sized for a 1% false positive rate
+    private static final double BITS_PER_ENTRY = 9.6;
+    private static final int HASH_FUNCTIONS = 7;
+
+    private final Duration window;
+    private final int expectedRevocations;
+    private final Map<String, Instant> revoked = new ConcurrentHashMap<>();
+    private final ScheduledFuture<?> rotations;
+    private volatile BloomFilter current;
+    private volatile BloomFilter previous;
+
+    /**
+     * @param tokenLifetime       how long tokens are valid for, which is how long a revocation must be remembered.
+     * @param expectedRevocations the number of revocations expected per token lifetime.
+     */
+    public RevocationList(Duration tokenLifetime, int expectedRevocations) {
+        this.window = tokenLifetime;
+        this.expectedRevocations = expectedRevocations;
+        this.current = new BloomFilter(expectedRevocations);
+        this.previous = new BloomFilter(expectedRevocations);
+
+        var millis = tokenLifetime.toMillis();
+        this.rotations = TokenStoreScheduler.shared()
+                .scheduleAtFixedRate(this::rotate, millis, millis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops rotating the filters. The shared scheduler would otherwise keep a list that is no longer used alive.
+     */
+    @Override
+    public void close() {
+        rotations.cancel(false);
+    }
+
+    public void revoke(String jti, Instant expiry) {
+        //add to the exact set first, so a Bloom hit always finds the entry
+        revoked.put(jti, expiry);
+        current.add(jti);
+    }
+
+    public boolean isRevoked(String jti) {
+        if (!current.mightContain(jti) && !previous.mightContain(jti)) {
+            return false;
+        }
+        return revoked.containsKey(jti);
+    }
+
+    //lets callers skip building the jti string while nothing is revoked
+    boolean isEmpty() {
+        return revoked.isEmpty();
+    }
+
+    public static String randomJwtId(SecureRandom secureRandom) {
+        var bytes = new byte[16];
+        secureRandom.nextBytes(bytes);
+        return Base64url.encode(bytes);
+    }
+
+    private void rotate() {
+        var now = Instant.now();
+        revoked.values().removeIf(expiry -> expiry.isBefore(now));
+
+        //the current filter is kept for one more window, so only tokens that are still valid after that need copying
+        var next = new BloomFilter(expectedRevocations);
+        var keepUntil = now.plus(window);
+        revoked.forEach((jti, expiry) -> {
+            if (expiry.isAfter(keepUntil)) {
+                next.add(jti);
+            }
+        });
+
+        previous = current;
+        current = next;
+    }
+
+    private static class BloomFilter {
+        private final AtomicLongArray bits;
+        private final int size;
+
+        private BloomFilter(int expectedEntries) {
+            var words = (int) Math.ceil(Math.max(1, expectedEntries) * BITS_PER_ENTRY / 64);
+            this.bits = new AtomicLongArray(words);
+            this.size = words * 64;
+        }
+
+        private void add(String value) {
+            var hash = hash(value);
+            var h1 = (int) hash;
+            var h2 = (int) (hash >>> 32);
+            for (int i = 0; i < HASH_FUNCTIONS; i++) {
+                var bit = Math.floorMod(h1 + i * h2, size);
+                var word = bit >>> 6;
+                var mask = 1L << bit;
+                long old;
+                do {
+                    old = bits.get(word);
+                } while ((old & mask) == 0 && !bits.compareAndSet(word, old, old | mask));
+            }
+        }
+
+        private boolean mightContain(String value) {
+            var hash = hash(value);
+            var h1 = (int) hash;
+            var h2 = (int) (hash >>> 32);
+            for (int i = 0; i < HASH_FUNCTIONS; i++) {
+                var bit = Math.floorMod(h1 + i * h2, size);
+                if ((bits.get(bit >>> 6) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        //64-bit FNV-1a over the chars followed by a murmur3 finalizer, computed without copying the string
+        private static long hash(String value) {
+            var hash = 0xcbf29ce484222325L;
+            for (int i = 0; i < value.length(); i++) {
+                hash ^= value.charAt(i);
+                hash *= 0x100000001b3L;
+            }
+            hash ^= hash >>> 33;
+            hash *= 0xff51afd7ed558ccdL;
+            hash ^= hash >>> 33;
+            hash *= 0xc4ceb9fe1a85ec53L;
+            hash ^= hash >>> 33;
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.gelerion.security.in.action.token;
+
+import java.util.List;
+
+/**
+ * The scopes the API knows about. A known scope is stored as a bit rather than by name, both in the scopes checked
+ * per request and in binary tokens, and its bit is its position in {@link #KNOWN}.
+ */
+public final class ScopeVocabulary {
+    //[scoped tokens] issued tokens carry these bits for as long as they live: a new scope is only ever appended,
+    // bits may never be reordered, and the bit of a scope that is dropped may never be reused for another one
+    public static final List<String> KNOWN = List.of("create_space", "post_message", "read_message", "list_messages",
+            "delete_message", "add_member", "full_access");
+
+    private ScopeVocabulary() {
+    }
+}
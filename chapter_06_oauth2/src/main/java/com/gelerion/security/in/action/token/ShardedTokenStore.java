@@ -0,0 +1,130 @@
+package com.gelerion.security.in.action.token;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import spark.Request;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.List;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static com.gelerion.security.in.action.token.CookieTokenStore.sha256;
+
+/**
+ * Spreads tokens over several independent {@link DatabaseTokenStore}s, each with its own database or connection
+ * pool, so that token throughput isn't limited by a single database.
+ * <p>
+ * The hashed token ID is placed on a consistent hash ring, and create, read and revoke for a token all go to the
+ * one shard that owns its position. Each shard appears on the ring many times, which keeps the load even, and adding
+ * a shard only moves the tokens that now fall into its ranges.
+ * <p>
+ * Expired tokens are swept from all shards at once every 10 minutes, on a scheduler with a thread per shard, instead
+ * of each shard sweeping itself on the scheduler shared by all token stores.
+ * <pre>
+ * var shards = new ArrayList&lt;DatabaseTokenStore&gt;();
+ * for (int i = 0; i &lt; 4; i++) {
+ *     var datasource = JdbcConnectionPool.create("jdbc:h2:mem:natter_tokens_" + i, "natter_api_user", "password");
+ *     shards.add(new DatabaseTokenStore(Database.forDataSource(datasource)));
+ * }
+ * var tokenStore = new ShardedTokenStore(shards);
+ * </pre>
+ */
+public class ShardedTokenStore implements TokenStore {
+    private static final Logger logger = LoggerFactory.getLogger(ShardedTokenStore.class);
+    private static final int VIRTUAL_NODES = 128;
+
+    private final List<DatabaseTokenStore> shards;
+    private final TreeMap<Long, DatabaseTokenStore> ring = new TreeMap<>();
+    private final SecureRandom secureRandom = new SecureRandom();
+    private final ScheduledExecutorService sweepScheduler;
+
+    public ShardedTokenStore(List<DatabaseTokenStore> shards) {
+        this.shards = List.copyOf(shards);
+        for (int shard = 0; shard < shards.size(); shard++) {
+            for (int node = 0; node < VIRTUAL_NODES; node++) {
+                ring.put(position(sha256("shard-" + shard + "-" + node)), shards.get(shard));
+            }
+        }
+
+        var threadCount = new AtomicInteger();
+        this.sweepScheduler = Executors.newScheduledThreadPool(shards.size(), runnable -> {
+            var thread = new Thread(runnable, "token-shard-sweeper-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (var shard : this.shards) {
+            shard.sweepOn(sweepScheduler);
+        }
+        sweepScheduler.scheduleWithFixedDelay(this::scheduledSweep, 10, 10, TimeUnit.MINUTES);
+    }
+
+    @Override
+    public String create(Request request, Token token) {
+        var tokenId = DatabaseTokenStore.randomId(secureRandom);
+        var hash = sha256(tokenId);
+        shardFor(hash).create(Base64url.encode(hash), token);
+        return tokenId;
+    }
+
+    @Override
+    public Optional<Token> read(Request request, String tokenId) {
+        var hash = sha256(tokenId);
+        return shardFor(hash).read(Base64url.encode(hash));
+    }
+
+    @Override
+    public CompletableFuture<Optional<Token>> readAsync(Request request, String tokenId) {
+        var hash = sha256(tokenId);
+        return shardFor(hash).readAsync(Base64url.encode(hash));
+    }
+
+    @Override
+    public void revoke(Request request, String tokenId) {
+        var hash = sha256(tokenId);
+        shardFor(hash).revoke(Base64url.encode(hash));
+    }
+
+    /**
+     * Sweeps expired tokens from all shards in parallel and waits for every sweep to finish.
+     */
+    public long deleteExpiredTokens() {
+        var sweeps = shards.stream()
+                .map(DatabaseTokenStore::sweep)
+                .collect(Collectors.toList());
+
+        var deleted = 0L;
+        for (var sweep : sweeps) {
+            deleted += sweep.join().deleted;
+        }
+        logger.info("Deleted {} expired tokens from {} shards", deleted, shards.size());
+        return deleted;
+    }
+
+    //an exception escaping a periodic task would silently cancel all later sweeps
+    private void scheduledSweep() {
+        for (var shard : shards) {
+            try {
+                shard.sweep();
+            } catch (RuntimeException e) {
+                logger.error("Failed to start an expired token sweep", e);
+            }
+        }
+    }
+
+    private DatabaseTokenStore shardFor(byte[] hash) {
+        var entry = ring.ceilingEntry(position(hash));
+        return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+    }
+
+    private static long position(byte[] hash) {
+        return ByteBuffer.wrap(hash).getLong();
+    }
+}
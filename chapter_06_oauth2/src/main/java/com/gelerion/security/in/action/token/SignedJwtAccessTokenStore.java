@@ -1,11 +1,16 @@
 package com.gelerion.security.in.action.token;
 
 import java.net.*;
+import java.nio.file.Path;
+import java.security.Key;
 import java.text.ParseException;
+import java.time.Duration;
 import java.util.Optional;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.nimbusds.jose.*;
-import com.nimbusds.jose.jwk.source.*;
+import com.nimbusds.jose.crypto.factories.DefaultJWSVerifierFactory;
 import com.nimbusds.jose.proc.*;
 import com.nimbusds.jwt.proc.DefaultJWTProcessor;
 import spark.Request;
@@ -14,18 +19,71 @@ public class SignedJwtAccessTokenStore implements TokenStore {
 
     private final String expectedIssuer;
     private final String expectedAudience;
-    private final JWSAlgorithm signatureAlgorithm;
-    private final JWKSource<SecurityContext> jwkSource;
+    private final DefaultJWTProcessor<SecurityContext> verifier;
+    private final SingleFlightResourceRetriever jwksRetriever;
 
     public SignedJwtAccessTokenStore(String expectedIssuer,
                                      String expectedAudience,
                                      JWSAlgorithm signatureAlgorithm,
                                      URI jwkSetUri)
             throws MalformedURLException {
+        this(expectedIssuer, expectedAudience, signatureAlgorithm, jwkSetUri, null);
+    }
+
+    /**
+     * @param jwkSetFile where the JWK set is kept so that tokens can be verified after a restart while the AS is
+     *                   down, or null to only keep it in memory. Whoever can write to it can plant verification keys,
+     *                   so it must be in a directory only the API can write to, never a shared one such as /tmp.
+     */
+    public SignedJwtAccessTokenStore(String expectedIssuer,
+                                     String expectedAudience,
+                                     JWSAlgorithm signatureAlgorithm,
+                                     URI jwkSetUri,
+                                     Path jwkSetFile)
+            throws MalformedURLException {
+        //[single-flight] requests that all miss the cached key set share one fetch of the JWKS
+        this(expectedIssuer, expectedAudience, signatureAlgorithm, jwkSetUri, jwkSetFile,
+                new SingleFlightResourceRetriever());
+    }
+
+    public SignedJwtAccessTokenStore(String expectedIssuer, String expectedAudience, JwkSetCache jwkSet) {
+        this.expectedIssuer = expectedIssuer;
+        this.expectedAudience = expectedAudience;
+        this.jwksRetriever = null;
+        this.verifier = processor(jwkSet);
+    }
+
+    private SignedJwtAccessTokenStore(String expectedIssuer,
+                                      String expectedAudience,
+                                      JWSAlgorithm signatureAlgorithm,
+                                      URI jwkSetUri,
+                                      Path jwkSetFile,
+                                      SingleFlightResourceRetriever jwksRetriever)
+            throws MalformedURLException {
         this.expectedIssuer = expectedIssuer;
         this.expectedAudience = expectedAudience;
-        this.signatureAlgorithm = signatureAlgorithm;
-        this.jwkSource = new RemoteJWKSet<>(jwkSetUri.toURL());
+        this.jwksRetriever = jwksRetriever;
+        //refresh the keys every 5 minutes, and on an unknown kid at most every 30 seconds
+        this.verifier = processor(new JwkSetCache(jwkSetUri.toURL(), jwksRetriever, signatureAlgorithm, jwkSetFile,
+                Duration.ofMinutes(5), Duration.ofSeconds(30)));
+    }
+
+    // A JWT access token can be validated by configuring the processor class to use the JWK set of the AS as the
+    // source for verification keys. The processor only holds configuration, so one instance is built up front and
+    // shared by all requests rather than a new one per token
+    private static DefaultJWTProcessor<SecurityContext> processor(JwkSetCache jwkSet) {
+        var processor = new DefaultJWTProcessor<>();
+        processor.setJWSKeySelector(jwkSet);
+        processor.setJWSVerifierFactory(new CachingJWSVerifierFactory());
+        return processor;
+    }
+
+    public long jwksFetches() {
+        return jwksRetriever == null ? 0 : jwksRetriever.fetches();
+    }
+
+    public long coalescedJwksFetches() {
+        return jwksRetriever == null ? 0 : jwksRetriever.coalesced();
     }
 
     @Override
@@ -41,12 +99,6 @@ public class SignedJwtAccessTokenStore implements TokenStore {
     @Override
     public Optional<Token> read(Request request, String tokenId) {
         try {
-            // A JWT access token can be validated by configuring the processor class to use the RemoteJWKSet as the
-            // source for verification keys (ES256 is an example of a JWS signature algorithm)
-            var verifier = new DefaultJWTProcessor<>();
-            var keySelector = new JWSVerificationKeySelector<>(signatureAlgorithm, jwkSource);
-            verifier.setJWSKeySelector(keySelector);
-
             var claims = verifier.process(tokenId, null);
 
             // check that the JWT was issued by the AS by validating the iss claim
@@ -60,7 +112,6 @@ public class SignedJwtAccessTokenStore implements TokenStore {
 
             var expiry = claims.getExpirationTime().toInstant();
             var subject = claims.getSubject();
-            var token = new Token(expiry, subject);
 
             String scope;
             try {
@@ -68,11 +119,29 @@ public class SignedJwtAccessTokenStore implements TokenStore {
             } catch (ParseException e) {
                 scope = String.join(" ", claims.getStringListClaim("scope"));
             }
-            token.attributes.put("scope", scope);
-            return Optional.of(token);
+            return Optional.of(new Token(expiry, subject, TokenAttributes.of("scope", scope)));
 
         } catch (ParseException | BadJOSEException | JOSEException e) {
             return Optional.empty();
         }
     }
+
+    /**
+     * The key selector hands out the same key objects until the JWK set changes, so the verifier built for a key,
+     * along with its parsed key material, can be reused for every token signed with it. Keys are compared by
+     * identity and weakly referenced, so verifiers of keys that were rotated out are dropped with them.
+     */
+    private static class CachingJWSVerifierFactory extends DefaultJWSVerifierFactory {
+        private final Cache<Key, JWSVerifier> verifiers = CacheBuilder.newBuilder().weakKeys().build();
+
+        @Override
+        public JWSVerifier createJWSVerifier(JWSHeader header, Key key) throws JOSEException {
+            var verifier = verifiers.getIfPresent(key);
+            if (verifier == null) {
+                verifier = super.createJWSVerifier(header, key);
+                verifiers.put(key, verifier);
+            }
+            return verifier;
+        }
+    }
 }
@@ -5,7 +5,9 @@ import com.nimbusds.jwt.JWTClaimsSet;
 import com.nimbusds.jwt.SignedJWT;
 import spark.Request;
 
+import java.security.SecureRandom;
 import java.text.ParseException;
+import java.time.Duration;
 import java.util.Date;
 import java.util.Optional;
 
@@ -24,15 +26,27 @@ public class SignedJwtTokenStore implements TokenStore {
     private final JWSVerifier verifier;
     private final JWSAlgorithm algorithm;
     private final String audience;
+    private final RevocationList revocationList;
+    private final SecureRandom secureRandom = new SecureRandom();
 
     public SignedJwtTokenStore(JWSSigner signer,
                                JWSVerifier verifier,
                                JWSAlgorithm algorithm,
                                String audience) {
+        //TokenController issues tokens that are valid for 10 minutes
+        this(signer, verifier, algorithm, audience, new RevocationList(Duration.ofMinutes(10), 10_000));
+    }
+
+    public SignedJwtTokenStore(JWSSigner signer,
+                               JWSVerifier verifier,
+                               JWSAlgorithm algorithm,
+                               String audience,
+                               RevocationList revocationList) {
         this.signer = signer;
         this.verifier = verifier;
         this.algorithm = algorithm;
         this.audience = audience;
+        this.revocationList = revocationList;
     }
 
     @Override
@@ -40,8 +54,10 @@ public class SignedJwtTokenStore implements TokenStore {
         /*
         To produce the JWT you first build the claims set, set the sub claim to the username, the exp claim to the
         token expiry time, and the aud claim to the audience value you got from the constructor.
+        [revocation] a random jti claim identifies the token, so that it can be revoked
          */
         var claimsSet = new JWTClaimsSet.Builder()
+                .jwtID(RevocationList.randomJwtId(secureRandom))
                 .subject(token.username)
                 .audience(audience)
                 .expirationTime(Date.from(token.expiry))
@@ -84,22 +100,39 @@ public class SignedJwtTokenStore implements TokenStore {
                 throw new JOSEException("Incorrect audience");
             }
 
+            //[revocation] the Bloom filter answers this without a lookup for tokens that were never revoked
+            var jti = claims.getJWTID();
+            if (jti != null && revocationList.isRevoked(jti)) {
+                return Optional.empty();
+            }
+
             var expiry = claims.getExpirationTime().toInstant();
             var subject = claims.getSubject();
-            var token = new Token(expiry, subject);
-
             var attrs = claims.getJSONObjectClaim("attrs");
-            attrs.forEach((key, value) ->
-                    token.attributes.put(key, (String) value));
+            var attributes = TokenAttributes.builder(attrs.size());
+            attrs.forEach((key, value) -> attributes.put(key, (String) value));
 
-            return Optional.of(token);
+            return Optional.of(new Token(expiry, subject, attributes.build()));
         } catch (ParseException | JOSEException e) {
             return Optional.empty();
         }
     }
 
+    //[revocation] only a valid token can be revoked, otherwise anybody could fill up the revocation list
     @Override
     public void revoke(Request request, String tokenId) {
-        // TODO
+        try {
+            var jwt = SignedJWT.parse(tokenId);
+            if (!jwt.verify(verifier)) {
+                return;
+            }
+
+            var claims = jwt.getJWTClaimsSet();
+            if (claims.getJWTID() != null) {
+                revocationList.revoke(claims.getJWTID(), claims.getExpirationTime().toInstant());
+            }
+        } catch (ParseException | JOSEException e) {
+            //nothing to revoke
+        }
     }
 }
@@ -0,0 +1,87 @@
+package com.gelerion.security.in.action.token;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Makes sure that only one call per key is in flight at a time. Callers that arrive while a call for the same key
+ * is running wait for it and share its result (or its exception) instead of making an identical call of their own.
+ * Nothing is remembered once the call completes, caching results is left to the caller.
+ */
+public class SingleFlight<K, V> {
+    private final Map<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+
+    public V run(K key, Supplier<V> call) {
+        var mine = new CompletableFuture<V>();
+        var existing = inFlight.putIfAbsent(key, mine);
+        if (existing != null) {
+            coalesced.increment();
+            try {
+                return existing.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+        }
+
+        calls.increment();
+        try {
+            var result = call.get();
+            mine.complete(result);
+            return result;
+        } catch (RuntimeException | Error e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    /**
+     * Like {@link #run}, for calls that are already asynchronous. Nobody blocks, callers for a key that is in flight
+     * get the same future.
+     */
+    public CompletableFuture<V> runAsync(K key, Supplier<? extends CompletionStage<V>> call) {
+        var mine = new CompletableFuture<V>();
+        var existing = inFlight.putIfAbsent(key, mine);
+        if (existing != null) {
+            coalesced.increment();
+            return existing;
+        }
+
+        calls.increment();
+        try {
+            call.get().whenComplete((result, e) -> {
+                inFlight.remove(key, mine);
+                if (e != null) {
+                    mine.completeExceptionally(e);
+                } else {
+                    mine.complete(result);
+                }
+            });
+        } catch (RuntimeException e) {
+            inFlight.remove(key, mine);
+            mine.completeExceptionally(e);
+        }
+        return mine;
+    }
+
+    //the number of calls actually made
+    public long calls() {
+        return calls.sum();
+    }
+
+    //the number of callers that shared another caller's call instead of making their own
+    public long coalesced() {
+        return coalesced.sum();
+    }
+}
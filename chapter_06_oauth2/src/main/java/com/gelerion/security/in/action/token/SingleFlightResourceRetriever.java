@@ -0,0 +1,50 @@
+package com.gelerion.security.in.action.token;
+
+import com.nimbusds.jose.util.DefaultResourceRetriever;
+import com.nimbusds.jose.util.Resource;
+import com.nimbusds.jose.util.ResourceRetriever;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URL;
+
+/**
+ * A {@link ResourceRetriever} for the JWK set that shares one HTTP request between all threads that need the same
+ * URL at the same time. A token signed with a new key makes every concurrent request miss the cached key set at
+ * once, without this each of them would fetch the JWKS from the AS.
+ */
+public class SingleFlightResourceRetriever implements ResourceRetriever {
+    private final ResourceRetriever delegate;
+    private final SingleFlight<String, Resource> singleFlight = new SingleFlight<>();
+
+    public SingleFlightResourceRetriever() {
+        this(new DefaultResourceRetriever());
+    }
+
+    public SingleFlightResourceRetriever(ResourceRetriever delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public Resource retrieveResource(URL url) throws IOException {
+        try {
+            return singleFlight.run(url.toString(), () -> {
+                try {
+                    return delegate.retrieveResource(url);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    public long fetches() {
+        return singleFlight.calls();
+    }
+
+    public long coalesced() {
+        return singleFlight.coalesced();
+    }
+}
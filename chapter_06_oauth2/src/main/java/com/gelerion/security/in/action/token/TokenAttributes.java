@@ -0,0 +1,163 @@
+package com.gelerion.security.in.action.token;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+/**
+ * The attributes of a {@link TokenStore.Token}. A token has a handful of attributes at most, so they are kept in a
+ * single array of alternating keys and values rather than a hash map, and looked up by scanning it. The array is
+ * sized exactly and never changes after the token is built, which also makes tokens safe to share between requests.
+ * <p>
+ * Keys and values are interned. Nearly every token carries the same few scope strings and client ids, so cached
+ * tokens all point at one copy of each instead of holding their own.
+ */
+public final class TokenAttributes extends AbstractMap<String, String> implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    //weak, so strings no token refers to any more can still be collected
+    private static final Interner<String> interner = Interners.newWeakInterner();
+    public static final TokenAttributes EMPTY = new TokenAttributes(new String[0]);
+
+    private final String[] entries;
+
+    private TokenAttributes(String[] entries) {
+        this.entries = entries;
+    }
+
+    public static TokenAttributes of(String key, String value) {
+        return builder(1).put(key, value).build();
+    }
+
+    public static TokenAttributes copyOf(Map<String, String> attributes) {
+        if (attributes instanceof TokenAttributes) {
+            return (TokenAttributes) attributes;
+        }
+        var builder = builder(attributes.size());
+        attributes.forEach(builder::put);
+        return builder.build();
+    }
+
+    public static Builder builder() {
+        return new Builder(4);
+    }
+
+    public static Builder builder(int expectedSize) {
+        return new Builder(expectedSize);
+    }
+
+    @Override
+    public String get(Object key) {
+        var index = indexOf(key);
+        return index == -1 ? null : entries[index + 1];
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return indexOf(key) != -1;
+    }
+
+    @Override
+    public int size() {
+        return entries.length / 2;
+    }
+
+    @Override
+    public void forEach(BiConsumer<? super String, ? super String> action) {
+        for (int i = 0; i < entries.length; i += 2) {
+            action.accept(entries[i], entries[i + 1]);
+        }
+    }
+
+    @Override
+    public Set<Entry<String, String>> entrySet() {
+        return new AbstractSet<>() {
+            @Override
+            public Iterator<Entry<String, String>> iterator() {
+                return new Iterator<>() {
+                    private int next = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < entries.length;
+                    }
+
+                    @Override
+                    public Entry<String, String> next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        var entry = new SimpleImmutableEntry<>(entries[next], entries[next + 1]);
+                        next += 2;
+                        return entry;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return TokenAttributes.this.size();
+            }
+        };
+    }
+
+    private int indexOf(Object key) {
+        //keys are interned, so the identity check nearly always decides it
+        for (int i = 0; i < entries.length; i += 2) {
+            if (entries[i] == key || entries[i].equals(key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Collects attributes straight into the array that the built {@link TokenAttributes} will hold on to, so
+     * decoders don't need to build a map first. Putting a key again replaces its value. A builder builds once.
+     */
+    public static final class Builder {
+        private String[] entries;
+        private int size;
+
+        private Builder(int expectedSize) {
+            this.entries = new String[Math.max(1, expectedSize) * 2];
+        }
+
+        public Builder put(String key, String value) {
+            if (entries == null) {
+                throw new IllegalStateException("already built");
+            }
+            if (key == null || value == null) {
+                throw new NullPointerException("token attributes can't be null");
+            }
+            for (int i = 0; i < size; i += 2) {
+                if (entries[i].equals(key)) {
+                    entries[i + 1] = interner.intern(value);
+                    return this;
+                }
+            }
+            if (size == entries.length) {
+                entries = Arrays.copyOf(entries, size * 2);
+            }
+            entries[size++] = interner.intern(key);
+            entries[size++] = interner.intern(value);
+            return this;
+        }
+
+        public TokenAttributes build() {
+            var built = size == 0 ? EMPTY
+                    : new TokenAttributes(size == entries.length ? entries : Arrays.copyOf(entries, size));
+            entries = null;
+            return built;
+        }
+    }
+}
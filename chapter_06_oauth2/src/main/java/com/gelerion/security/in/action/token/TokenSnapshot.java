@@ -0,0 +1,27 @@
+package com.gelerion.security.in.action.token;
+
+import java.time.Instant;
+
+/**
+ * A {@link TokenStore.Token} held by a cache that hands the same token to many requests. Tokens and their
+ * attributes are immutable, so the cached token itself is returned rather than a copy.
+ */
+class TokenSnapshot {
+    final String username;
+    final Instant expiry;
+    private final TokenStore.Token token;
+
+    TokenSnapshot(TokenStore.Token token) {
+        this.username = token.username;
+        this.expiry = token.expiry;
+        this.token = token;
+    }
+
+    boolean isExpired() {
+        return !Instant.now().isBefore(expiry);
+    }
+
+    TokenStore.Token toToken() {
+        return token;
+    }
+}
@@ -5,7 +5,8 @@ import spark.Request;
 import java.time.Instant;
 import java.util.Map;
 import java.util.Optional;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 
 public interface TokenStore {
 
@@ -15,6 +16,12 @@ public interface TokenStore {
     //look up a token by ID
     Optional<Token> read(Request request, String tokenId);
 
+    //look up a token by ID without blocking the caller. Stores that only do in-memory work complete immediately,
+    // stores that wait on a database or the network override this
+    default CompletionStage<Optional<Token>> readAsync(Request request, String tokenId) {
+        return CompletableFuture.completedFuture(read(request, tokenId));
+    }
+
     //logout
     void revoke(Request request, String tokenId);
 
@@ -22,13 +29,18 @@ public interface TokenStore {
         public final Instant expiry;
         public final String username;
         //A collection of attributes that you can use to associate information with the token,
-        //such as how the user was authenticated or other details that you want to use to make access control decisions
-        public final Map<String, String> attributes;
+        //such as how the user was authenticated or other details that you want to use to make access control decisions.
+        //Tokens are immutable, so a token read once can be handed to any number of requests
+        public final TokenAttributes attributes;
 
         public Token(Instant expiry, String username) {
+            this(expiry, username, TokenAttributes.EMPTY);
+        }
+
+        public Token(Instant expiry, String username, Map<String, String> attributes) {
             this.expiry = expiry;
             this.username = username;
-            this.attributes = new ConcurrentHashMap<>();
+            this.attributes = TokenAttributes.copyOf(attributes);
         }
     }
 }
@@ -0,0 +1,35 @@
+package com.gelerion.security.in.action.token;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Background work of the token stores, such as expired token sweeps and write-behind flushes, runs on one shared
+ * scheduler. Blocking database reads done for {@link TokenStore#readAsync} run on a separate bounded pool, sized
+ * like the default H2 connection pool. All threads are daemons, so creating a store never keeps the JVM alive.
+ */
+public final class TokenStoreScheduler {
+    private static final AtomicInteger threadCount = new AtomicInteger();
+    private static final ScheduledExecutorService scheduler =
+            Executors.newScheduledThreadPool(2, TokenStoreScheduler::newThread);
+    private static final ExecutorService blocking = Executors.newFixedThreadPool(10, TokenStoreScheduler::newThread);
+
+    private TokenStoreScheduler() {
+    }
+
+    public static ScheduledExecutorService shared() {
+        return scheduler;
+    }
+
+    public static ExecutorService blocking() {
+        return blocking;
+    }
+
+    private static Thread newThread(Runnable runnable) {
+        var thread = new Thread(runnable, "token-store-" + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    }
+}
@@ -1,5 +1,7 @@
 package com.gelerion.security.in.action.token.encrypted;
 
+import com.gelerion.security.in.action.token.RevocationList;
+import com.gelerion.security.in.action.token.TokenAttributes;
 import com.gelerion.security.in.action.token.TokenStore;
 import com.nimbusds.jose.*;
 import com.nimbusds.jose.crypto.*;
@@ -7,7 +9,9 @@ import com.nimbusds.jwt.*;
 import spark.Request;
 
 import javax.crypto.SecretKey;
+import java.security.SecureRandom;
 import java.text.ParseException;
+import java.time.Duration;
 import java.util.*;
 
 /**
@@ -16,15 +20,24 @@ import java.util.*;
  */
 public class EncryptedJwtTokenStore implements TokenStore {
     private final SecretKey encKey;
+    private final RevocationList revocationList;
+    private final SecureRandom secureRandom = new SecureRandom();
 
     public EncryptedJwtTokenStore(SecretKey encKey) {
+        //TokenController issues tokens that are valid for 10 minutes
+        this(encKey, new RevocationList(Duration.ofMinutes(10), 10_000));
+    }
+
+    public EncryptedJwtTokenStore(SecretKey encKey, RevocationList revocationList) {
         this.encKey = encKey;
+        this.revocationList = revocationList;
     }
 
     @Override
     public String create(Request request, Token token) {
         // First you build a JWT claims set
         var claimsBuilder = new JWTClaimsSet.Builder()
+                .jwtID(RevocationList.randomJwtId(secureRandom))
                 .subject(token.username)
                 .audience("https://localhost:4567")
                 .expirationTime(Date.from(token.expiry));
@@ -49,32 +62,51 @@ public class EncryptedJwtTokenStore implements TokenStore {
     @Override
     public Optional<Token> read(Request request, String tokenId) {
         try {
-            var jwt = EncryptedJWT.parse(tokenId);
-
-            var decryptor = new DirectDecrypter(encKey);
-            jwt.decrypt(decryptor);
-
-            var claims = jwt.getJWTClaimsSet();
+            var claims = decrypt(tokenId);
             if (!claims.getAudience().contains("https://localhost:4567")) {
                 return Optional.empty();
             }
 
+            //[revocation] the Bloom filter answers this without a lookup for tokens that were never revoked
+            var jti = claims.getJWTID();
+            if (jti != null && revocationList.isRevoked(jti)) {
+                return Optional.empty();
+            }
+
             var expiry = claims.getExpirationTime().toInstant();
             var subject = claims.getSubject();
-            var token = new Token(expiry, subject);
-            var ignore = Set.of("exp", "sub", "aud");
+            var attributes = TokenAttributes.builder();
+            var ignore = Set.of("exp", "sub", "aud", "jti");
             for (var attr : claims.getClaims().keySet()) {
                 if (ignore.contains(attr)) continue;
-                token.attributes.put(attr, claims.getStringClaim(attr));
+                attributes.put(attr, claims.getStringClaim(attr));
             }
 
-            return Optional.of(token);
+            return Optional.of(new Token(expiry, subject, attributes.build()));
         } catch (ParseException | JOSEException e) {
             return Optional.empty();
         }
     }
 
+    //[revocation] only a token that decrypts with our key can be revoked
     @Override
     public void revoke(Request request, String tokenId) {
+        try {
+            var claims = decrypt(tokenId);
+            if (claims.getJWTID() != null) {
+                revocationList.revoke(claims.getJWTID(), claims.getExpirationTime().toInstant());
+            }
+        } catch (ParseException | JOSEException e) {
+            //nothing to revoke
+        }
+    }
+
+    private JWTClaimsSet decrypt(String tokenId) throws ParseException, JOSEException {
+        var jwt = EncryptedJWT.parse(tokenId);
+
+        var decryptor = new DirectDecrypter(encKey);
+        jwt.decrypt(decryptor);
+
+        return jwt.getJWTClaimsSet();
     }
 }
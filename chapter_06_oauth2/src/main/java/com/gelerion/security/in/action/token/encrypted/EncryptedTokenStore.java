@@ -7,6 +7,7 @@ import spark.Request;
 
 import java.security.Key;
 import java.util.Optional;
+import java.util.concurrent.CompletionStage;
 
 public class EncryptedTokenStore implements TokenStore {
 
@@ -31,6 +32,13 @@ public class EncryptedTokenStore implements TokenStore {
         return delegate.read(request, originalTokenId);
     }
 
+    @Override
+    public CompletionStage<Optional<Token>> readAsync(Request request, String tokenId) {
+        var box = SecretBox.fromString(tokenId);
+        var originalTokenId = Base64url.encode(box.decrypt(encryptionKey));
+        return delegate.readAsync(request, originalTokenId);
+    }
+
     @Override
     public void revoke(Request request, String tokenId) {
         var box = SecretBox.fromString(tokenId);
@@ -0,0 +1,76 @@
+package com.gelerion.security.in.action.validation;
+
+/**
+ * Checks for the syntax of untrusted input: usernames, permissions and access tokens. Each check is a single pass over
+ * the characters with no allocation. {@code String.matches} compiles its regular expression again on every call,
+ * which costs more than the rest of the check, and these checks run on every request.
+ * <p>
+ * Every check accepts exactly what the regular expression in its description does.
+ */
+public final class Validators {
+    private static final int MAX_USERNAME_LENGTH = 30;
+
+    private Validators() {
+    }
+
+    /**
+     * A username of a registered user, {@code [a-zA-Z][a-zA-Z0-9]{1,29}}.
+     */
+    public static boolean isUsername(String value) {
+        return value.length() >= 2 && isName(value);
+    }
+
+    /**
+     * The author of a message, {@code [a-zA-Z][a-zA-Z0-9]{0,29}}. Unlike a username it may be a single letter.
+     */
+    public static boolean isAuthor(String value) {
+        return value.length() >= 1 && isName(value);
+    }
+
+    /**
+     * Permissions on a space, {@code r?w?d?}.
+     */
+    public static boolean isPermissions(String value) {
+        var i = 0;
+        var length = value.length();
+        if (i < length && value.charAt(i) == 'r') i++;
+        if (i < length && value.charAt(i) == 'w') i++;
+        if (i < length && value.charAt(i) == 'd') i++;
+        return i == length;
+    }
+
+    /**
+     * An access token as allowed by the OAuth2 spec, {@code [\x20-\x7E]{1,1024}}.
+     */
+    public static boolean isAccessToken(String value) {
+        var length = value.length();
+        if (length < 1 || length > 1024) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            var c = value.charAt(i);
+            if (c < 0x20 || c > 0x7E) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isName(String value) {
+        var length = value.length();
+        if (length > MAX_USERNAME_LENGTH || !isLetter(value.charAt(0))) {
+            return false;
+        }
+        for (int i = 1; i < length; i++) {
+            var c = value.charAt(i);
+            if (!isLetter(c) && (c < '0' || c > '9')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isLetter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+}
@@ -11,7 +11,8 @@ CREATE TABLE spaces
     name     VARCHAR(255) NOT NULL,
     owner    VARCHAR(30)  NOT NULL
 );
-CREATE SEQUENCE space_id_seq;
+-- ids are handed out in blocks of the increment, see SequenceAllocator
+CREATE SEQUENCE space_id_seq INCREMENT BY 100;
 
 CREATE TABLE messages
 (
@@ -21,8 +22,9 @@ CREATE TABLE messages
     msg_time TIMESTAMP     NOT NULL DEFAULT CURRENT_TIMESTAMP,
     msg_text VARCHAR(1024) NOT NULL
 );
-CREATE SEQUENCE msg_id_seq;
+CREATE SEQUENCE msg_id_seq INCREMENT BY 100;
 CREATE INDEX msg_timestamp_idx ON messages (msg_time);
+CREATE INDEX msg_space_time_idx ON messages (space_id, msg_time, msg_id);
 CREATE UNIQUE INDEX space_name_idx ON spaces (name);
 
 CREATE TABLE audit_log
@@ -34,7 +36,7 @@ CREATE TABLE audit_log
     status     INT          NULL,
     audit_time TIMESTAMP    NOT NULL
 );
-CREATE SEQUENCE audit_id_seq;
+CREATE SEQUENCE audit_id_seq INCREMENT BY 100;
 
 CREATE TABLE permissions
 (
@@ -55,7 +57,7 @@ CREATE INDEX expired_token_idx ON tokens (expiry);
 
 CREATE USER natter_api_user PASSWORD 'password';
 GRANT SELECT, INSERT ON spaces, messages TO natter_api_user;
-GRANT SELECT, INSERT ON users TO natter_api_user;
+GRANT SELECT, INSERT, UPDATE ON users TO natter_api_user;
 GRANT SELECT, INSERT ON audit_log TO natter_api_user;
 GRANT SELECT, INSERT ON permissions TO natter_api_user;
 GRANT DELETE ON messages TO natter_api_user;